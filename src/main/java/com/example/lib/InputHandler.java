@@ -1,5 +1,10 @@
 package com.example.lib;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+
 @FunctionalInterface
 public interface InputHandler {
     InputHandler handleInput(TgChat chat, String input);
@@ -25,7 +30,118 @@ public interface InputHandler {
             java.util.List<Attachment> attachments,
             Integer originalMessageId,
             String mediaGroupId
-    ) { }
+    ) {
+        /**
+         * Starts downloads of all attachments at once, so they're downloaded in parallel.
+         */
+        public CompletableFuture<java.util.List<byte[]>> downloadAll() {
+            if (attachments == null || attachments.isEmpty())
+                return CompletableFuture.completedFuture(java.util.List.of());
+
+            final var downloads = attachments.stream().map(Attachment::download).toList();
+            return CompletableFuture.allOf(downloads.toArray(CompletableFuture[]::new))
+                    .thenApply(__ -> downloads.stream().map(CompletableFuture::join).toList());
+        }
+    }
+
+    /**
+     * Describes a file attached to a message. Content isn't downloaded until it's requested by the handler.
+     */
+    final class Attachment {
+        private final boolean isVideo;
+        private final boolean isAnimation;
+        private final String fileId;
+        private final String fileUniqueId;
+        private final Long fileSize;
+        private final String mimeType;
+        private final FileSource source;
+
+        private CompletableFuture<byte[]> download;
+
+        public Attachment(boolean isVideo, boolean isAnimation, String fileId, String fileUniqueId, Long fileSize,
+                          String mimeType, FileSource source) {
+            this.isVideo = isVideo;
+            this.isAnimation = isAnimation;
+            this.fileId = fileId;
+            this.fileUniqueId = fileUniqueId;
+            this.fileSize = fileSize;
+            this.mimeType = mimeType;
+            this.source = source;
+        }
+
+        public boolean isVideo() {
+            return isVideo;
+        }
+
+        public boolean isAnimation() {
+            return isAnimation;
+        }
+
+        public String fileId() {
+            return fileId;
+        }
+
+        public String fileUniqueId() {
+            return fileUniqueId;
+        }
+
+        /**
+         * nullable, telegram doesn't always know the size
+         */
+        public Long fileSize() {
+            return fileSize;
+        }
 
-    record Attachment(boolean isVideo, boolean isAnimation, byte[] data, String mimeType) { }
+        public String mimeType() {
+            return mimeType;
+        }
+
+        /**
+         * Downloads the whole file in background, only the first call starts the download.
+         * A failed download isn't kept, so the next call starts it again.
+         */
+        public synchronized CompletableFuture<byte[]> download() {
+            if (download == null || download.isCompletedExceptionally())
+                download = source.download(this);
+
+            return download;
+        }
+
+        /**
+         * Same as {@link #download()}, but returns read-only content without copying it when the file is cached.
+         */
+        public CompletableFuture<ByteBuffer> buffer() {
+            return source.buffer(this);
+        }
+
+        /**
+         * Opens the file content as a stream, so it isn't buffered in memory. Blocks until the file is located.
+         */
+        public InputStream openStream() throws IOException {
+            return source.open(this);
+        }
+
+        /**
+         * Blocking shortcut for {@link #download()}
+         */
+        public byte[] data() {
+            return download().join();
+        }
+
+        @Override
+        public String toString() {
+            return "Attachment{fileId=" + fileId + ", fileUniqueId=" + fileUniqueId + ", fileSize=" + fileSize +
+                    ", mimeType=" + mimeType + ", isVideo=" + isVideo + ", isAnimation=" + isAnimation + "}";
+        }
+    }
+
+    interface FileSource {
+        CompletableFuture<byte[]> download(Attachment attachment);
+
+        InputStream open(Attachment attachment) throws IOException;
+
+        default CompletableFuture<ByteBuffer> buffer(Attachment attachment) {
+            return attachment.download().thenApply(data -> ByteBuffer.wrap(data).asReadOnlyBuffer());
+        }
+    }
 }
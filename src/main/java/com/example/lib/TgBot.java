@@ -1,22 +1,44 @@
 package com.example.lib;
 
+import com.example.lib.internals.AttachmentCache;
 import com.example.lib.internals.CallbackHandler;
+import com.example.lib.internals.CallbackHandlerIndex;
+import com.example.lib.internals.ChatRegistry;
+import com.example.lib.internals.ChatUpdateDispatcher;
+import com.example.lib.internals.EntityHtmlFormatter;
+import com.example.lib.internals.MediaGroupAggregator;
+import com.example.lib.internals.MessageContextCache;
+import com.example.lib.internals.MessageContextStore;
+import com.example.lib.internals.OutboundScheduler;
+import com.example.lib.internals.UpdatePoller;
+import com.example.lib.internals.WebhookServer;
+import com.example.lib.menu.CallbackReference;
 import com.example.lib.menu.MenuInfoSupplier;
 import com.example.lib.model.CheckoutInfo;
+import com.example.lib.processing.CallbackHandlerIndexProcessor;
+import com.pengrad.telegrambot.Callback;
 import com.pengrad.telegrambot.TelegramBot;
 import com.pengrad.telegrambot.UpdatesListener;
 import com.pengrad.telegrambot.model.*;
 import com.pengrad.telegrambot.model.message.MaybeInaccessibleMessage;
-import com.pengrad.telegrambot.model.MessageEntity;
 import com.pengrad.telegrambot.model.message.origin.MessageOriginChannel;
 import com.pengrad.telegrambot.model.message.origin.MessageOriginChat;
 import com.pengrad.telegrambot.model.request.ReplyKeyboardRemove;
 import com.pengrad.telegrambot.request.AnswerCallbackQuery;
 import com.pengrad.telegrambot.request.BaseRequest;
+import com.pengrad.telegrambot.request.EditMessageCaption;
+import com.pengrad.telegrambot.request.EditMessageMedia;
+import com.pengrad.telegrambot.request.EditMessageReplyMarkup;
+import com.pengrad.telegrambot.request.EditMessageText;
+import com.pengrad.telegrambot.request.DeleteWebhook;
 import com.pengrad.telegrambot.request.GetUpdates;
+import com.pengrad.telegrambot.request.SetWebhook;
 import com.pengrad.telegrambot.request.GetFile;
 import com.pengrad.telegrambot.response.GetFileResponse;
 import com.pengrad.telegrambot.response.BaseResponse;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.ResponseBody;
 import org.apache.commons.lang3.function.TriConsumer;
 import org.jetbrains.annotations.NotNull;
 import org.reflections.Reflections;
@@ -24,27 +46,95 @@ import org.reflections.scanners.Scanners;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.IOException;
-import java.lang.reflect.Field;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
 import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiConsumer;
 import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
-import static com.example.lib.menu.CallbackReference.TAG_PAYLOAD_SPLIT_STRING;
+import static com.example.lib.menu.CallbackReference.TAG_PAYLOAD_SPLIT_CHAR;
 
 public class TgBot {
     private static final Logger log = LoggerFactory.getLogger(TgBot.class);
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
 
     private final TelegramBot telegramBot;
-    private final Map<Long, TgChat> chats = new ConcurrentHashMap<>();
-    private final ConcurrentHashMap<String, CallbackHandler> callbackDataHandlers = new ConcurrentHashMap<>();
+    private final OkHttpClient httpClient;
+    private final ChatRegistry chats = new ChatRegistry();
+    private MessageContextCache.Limits messageContextLimits = MessageContextCache.Limits.defaults();
+    private Consumer<TgChat> onChatEvicted;
+    private volatile MessageContextStore messageContextStore;
+    private final CallbackHandlerIndex<CallbackHandler> callbackDataHandlers = new CallbackHandlerIndex<>();
 
     private String helpMessage = "core.helpMessage";
 
+    private Executor updateExecutor;
+    private int updateQueueDepth = 10_000;
+    private volatile ChatUpdateDispatcher dispatcher;
+    private volatile OutboundScheduler outboundScheduler = new OutboundScheduler();
+    private Executor downloadExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private Executor contextStoreExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile AttachmentCache attachmentCache;
+    private volatile MediaGroupAggregator<Message> mediaGroupAggregator;
+    private ScheduledExecutorService timer;
+    private WebhookServer webhookServer;
+    private UpdatePoller updatePoller;
+    private int pollingLimit = 100;
+    private int pollingTimeout = 50;
+    private int pollingHighWater;
+    private Duration menuTimeout = Duration.ofSeconds(10);
+    private ScheduledFuture<?> chatEviction;
+    private ScheduledFuture<?> contextExpiry;
+    private final InputHandler.FileSource fileSource = new InputHandler.FileSource() {
+        @Override
+        public CompletableFuture<byte[]> download(InputHandler.Attachment attachment) {
+            if (attachmentCache == null || attachment.fileUniqueId() == null)
+                return downloadFileAsync(attachment.fileId());
+
+            return buffer(attachment).thenApply(buffer -> {
+                final var data = new byte[buffer.remaining()];
+                buffer.duplicate().get(data);
+                return data;
+            });
+        }
+
+        @Override
+        public InputStream open(InputHandler.Attachment attachment) throws IOException {
+            final var cache = attachmentCache;
+            final var cached = cache != null ? cache.get(attachment.fileUniqueId()) : null;
+            if (cached != null)
+                return AttachmentCache.asStream(cached);
+
+            return openFile(attachment.fileId());
+        }
+
+        @Override
+        public CompletableFuture<ByteBuffer> buffer(InputHandler.Attachment attachment) {
+            final var cache = attachmentCache;
+            if (cache == null || attachment.fileUniqueId() == null)
+                return InputHandler.FileSource.super.buffer(attachment);
+
+            return cache.get(attachment.fileUniqueId(), () -> downloadFileAsync(attachment.fileId()));
+        }
+    };
+    private boolean coalesceEdits = false;
+
     private MenuInfoSupplier startMenu;
     private Consumer<TgChat> onChatInitialized;
     private BiConsumer<Long, Checkout> onCheckout;
@@ -54,7 +144,26 @@ public class TgBot {
     private Consumer<ChatJoinRequest> onChatJoinRequest;
 
     public TgBot(String apiKey) {
-        telegramBot = new TelegramBot(apiKey);
+        this(apiKey, new OkHttpClient());
+    }
+
+    /**
+     * @param httpClient used for both API requests and file downloads, so they share its proxy,
+     *                   timeouts and connection pool
+     */
+    public TgBot(String apiKey, OkHttpClient httpClient) {
+        this.httpClient = httpClient;
+        telegramBot = new TelegramBot.Builder(apiKey).okHttpClient(httpClient).build();
+        chats.setOnEvicted(chat -> {
+            if (onChatEvicted != null)
+                onChatEvicted.accept(chat);
+
+            chat.clearContexts();
+        });
+        chats.setInUse(chatId -> {
+            final var updateDispatcher = dispatcher;
+            return updateDispatcher != null && updateDispatcher.isPending(chatId);
+        });
     }
 
     public String getHelpMessage() {
@@ -101,17 +210,241 @@ public class TgBot {
         this.onChatJoinRequest = onChatJoinRequest;
     }
 
-    public void startListen() {
-        final var updateList = new ArrayList<>(List.of("message", "callback_query", "pre_checkout_query"));
+    public Executor getUpdateExecutor() {
+        return updateExecutor;
+    }
 
-        if (onChatMemberUpdated != null)
-            updateList.add("chat_member");
+    /**
+     * Executor used to process updates. Updates of a single chat are always processed one by one in order they
+     * came, different chats are processed in parallel. Virtual thread per task executor is used by default.
+     * Must be set before listening is started.
+     */
+    public void setUpdateExecutor(Executor updateExecutor) {
+        this.updateExecutor = updateExecutor;
+    }
 
-        if (onChatJoinRequest != null)
-            updateList.add("chat_join_request");
+    public int getUpdateQueueDepth() {
+        return updateQueueDepth;
+    }
+
+    /**
+     * Max amount of updates which are queued for processing. When it's reached, receiving of new updates
+     * is paused until some of queued ones are processed. Must be set before listening is started.
+     */
+    public void setUpdateQueueDepth(int updateQueueDepth) {
+        this.updateQueueDepth = updateQueueDepth;
+    }
+
+    /**
+     * Max amount of updates received by a single request in {@link #startPipelinedListen()}, 1-100.
+     */
+    public void setPollingLimit(int pollingLimit) {
+        this.pollingLimit = pollingLimit;
+    }
+
+    /**
+     * Long polling timeout in seconds for {@link #startPipelinedListen()}, 50 by default.
+     * Must be lower than read timeout of the http client of the bot.
+     */
+    public void setPollingTimeout(int pollingTimeout) {
+        this.pollingTimeout = pollingTimeout;
+    }
+
+    /**
+     * Amount of queued updates at which {@link #startPipelinedListen()} stops receiving new ones until
+     * the queue drains below it. Half of update queue depth by default.
+     */
+    public void setPollingHighWater(int pollingHighWater) {
+        this.pollingHighWater = pollingHighWater;
+    }
+
+    public Duration getMenuTimeout() {
+        return menuTimeout;
+    }
+
+    /**
+     * Max time a menu could be created for, unless the menu overrides {@link MenuInfoSupplier#getTimeout()}.
+     * 10 seconds by default.
+     */
+    public void setMenuTimeout(Duration menuTimeout) {
+        this.menuTimeout = menuTimeout;
+    }
+
+    public OutboundScheduler getOutboundScheduler() {
+        return outboundScheduler;
+    }
+
+    /**
+     * Scheduler which all requests addressed to a chat go through to respect telegram flood limits.
+     * Null disables rate limiting, so requests are sent immediately.
+     */
+    public void setOutboundScheduler(OutboundScheduler outboundScheduler) {
+        this.outboundScheduler = outboundScheduler;
+    }
+
+    /**
+     * @return amount of outgoing requests waiting to be sent because of flood limits
+     */
+    public int getOutboundQueueSize() {
+        final var scheduler = outboundScheduler;
+        return scheduler != null ? scheduler.getQueueSize() : 0;
+    }
+
+    public boolean isCoalesceEdits() {
+        return coalesceEdits;
+    }
+
+    /**
+     * If enabled, an edit of a message which is still waiting in the outbound queue is replaced by a newer edit
+     * of the same kind, so only the latest state of the message is sent. An edit is replaced only if no other
+     * request to the chat was queued after it, so the order of requests within the chat is kept.
+     * Requires outbound scheduler.
+     */
+    public void setCoalesceEdits(boolean coalesceEdits) {
+        this.coalesceEdits = coalesceEdits;
+    }
+
+    public Executor getDownloadExecutor() {
+        return downloadExecutor;
+    }
+
+    /**
+     * Executor which downloads attachment content, virtual thread per task executor by default.
+     */
+    public void setDownloadExecutor(Executor downloadExecutor) {
+        this.downloadExecutor = downloadExecutor;
+    }
+
+    public Executor getContextStoreExecutor() {
+        return contextStoreExecutor;
+    }
+
+    /**
+     * Executor which saves message contexts once a menu is sent or edited, so the store isn't called on threads
+     * of the HTTP client. Virtual thread per task executor by default.
+     */
+    public void setContextStoreExecutor(Executor contextStoreExecutor) {
+        this.contextStoreExecutor = contextStoreExecutor;
+    }
+
+    public AttachmentCache getAttachmentCache() {
+        return attachmentCache;
+    }
+
+    /**
+     * Cache of downloaded attachments, so the same file coming again isn't downloaded. Null (default) disables it.
+     */
+    public void setAttachmentCache(AttachmentCache attachmentCache) {
+        this.attachmentCache = attachmentCache;
+    }
+
+    public MessageContextStore getMessageContextStore() {
+        return messageContextStore;
+    }
+
+    /**
+     * Storage which keeps message contexts across restarts, so menus sent before restart keep working.
+     * Null (default) keeps contexts in memory only. {@link com.example.lib.internals.FileMessageContextStore}
+     * is a built-in local implementation.
+     */
+    public void setMessageContextStore(MessageContextStore messageContextStore) {
+        this.messageContextStore = messageContextStore;
+    }
+
+    /**
+     * Max amount of chats kept in memory. When it's exceeded, the least recently used chats are evicted.
+     */
+    public void setChatCapacity(int capacity) {
+        chats.setCapacity(capacity);
+    }
+
+    /**
+     * Chats which got no updates during the timeout are evicted from memory. Null (default) disables it.
+     */
+    public synchronized void setChatIdleTimeout(Duration idleTimeout) {
+        chats.setIdleTimeout(idleTimeout);
+
+        if (chatEviction != null) {
+            chatEviction.cancel(false);
+            chatEviction = null;
+        }
+
+        if (idleTimeout != null) {
+            final long period = Math.max(1, Math.min(idleTimeout.toMillis() / 4, TimeUnit.MINUTES.toMillis(1)));
+            chatEviction = getTimer().scheduleAtFixedRate(chats::evictIdle, period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Invoked for every chat evicted from memory, so its state could be persisted.
+     * Evicted chat is created again with {@link #setOnChatInitialized} hook on its next update.
+     */
+    public void setOnChatEvicted(Consumer<TgChat> onChatEvicted) {
+        this.onChatEvicted = onChatEvicted;
+    }
+
+    public MessageContextCache.Limits getMessageContextLimits() {
+        return messageContextLimits;
+    }
+
+    /**
+     * Limits amount of menu contexts kept in memory. Clicking a menu which context was evicted
+     * leads to "core.rottenMenu" message. Applied to chats created after the call.
+     * @param perChat max amount of contexts of a single chat
+     * @param ttl contexts are evicted this time after their message was sent, even if they're still used
+     * @param global max amount of contexts of all chats
+     */
+    public synchronized void setMessageContextLimits(int perChat, Duration ttl, long global) {
+        this.messageContextLimits = new MessageContextCache.Limits(perChat, ttl, global);
+        if (contextExpiry != null)
+            scheduleContextExpiry();
+    }
+
+    /*
+     * Expired contexts are swept across all chats, so chats which get no updates release them too.
+     * Started with receiving of updates, since there are no contexts before that
+     */
+    private synchronized void scheduleContextExpiry() {
+        if (contextExpiry != null)
+            contextExpiry.cancel(false);
+
+        final long period = Math.max(TimeUnit.SECONDS.toMillis(1),
+                Math.min(messageContextLimits.getTtl().toMillis() / 4, TimeUnit.MINUTES.toMillis(1)));
+        contextExpiry = getTimer().scheduleAtFixedRate(chats::evictExpiredContexts,
+                period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public int getChatCount() {
+        return chats.size();
+    }
 
+    /**
+     * Enables aggregation of albums: messages sharing a media group id are buffered until no new message of the
+     * group arrives during the window, then the input handler is invoked once with attachments of all of them.
+     * The album takes the place of its first message in the chat's queue, so updates of the chat which came after
+     * it wait until it's handled and the order of updates is kept. It delays them by up to the window.
+     * Null (default) disables aggregation, so every message of an album is handled separately.
+     */
+    public synchronized void setMediaGroupWindow(Duration window) {
+        mediaGroupAggregator = window != null ? new MediaGroupAggregator<>(window, getTimer()) : null;
+    }
+
+    protected synchronized ScheduledExecutorService getTimer() {
+        if (timer == null) {
+            timer = Executors.newSingleThreadScheduledExecutor(r -> {
+                final var thread = new Thread(r, "tg-bot-timer");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        return timer;
+    }
+
+    public void startListen() {
+        scheduleContextExpiry();
         final var rq = new GetUpdates();
-        rq.allowedUpdates(updateList.toArray(new String[]{}));
+        rq.allowedUpdates(allowedUpdates());
 
         telegramBot.setUpdatesListener(updates -> {
             processUpdatesNoThrow(updates);
@@ -119,16 +452,165 @@ public class TgBot {
         }, rq);
     }
 
+    /**
+     * Starts long polling which receives the next batch of updates while the previous one is being processed.
+     * Unlike {@link #startListen()}, processing of a batch doesn't delay receiving of the next one. Polling
+     * is paused while the update queue is above the high-water mark, see {@link #setPollingHighWater(int)}.
+     */
+    public synchronized void startPipelinedListen() {
+        if (updatePoller != null)
+            throw new IllegalStateException("Polling is already started");
+
+        final var updateDispatcher = getDispatcher();
+        final int highWater = pollingHighWater > 0 ?
+                pollingHighWater : Math.max(1, updateDispatcher.getQueueDepth() / 2);
+
+        scheduleContextExpiry();
+        updatePoller = new UpdatePoller(telegramBot, allowedUpdates(), pollingLimit, pollingTimeout,
+                updateDispatcher::pending, highWater, this::dispatchUpdateNoThrow);
+        updatePoller.start();
+    }
+
+    /**
+     * Stops receiving updates started by either {@link #startListen()} or {@link #startPipelinedListen()}.
+     */
+    public synchronized void stopListen() {
+        if (updatePoller != null) {
+            updatePoller.stop();
+            updatePoller = null;
+        }
+
+        telegramBot.removeGetUpdatesListener();
+    }
+
+    /**
+     * Starts receiving updates with a webhook instead of long polling. Updates are handled with the same pipeline
+     * as in {@link #startListen()}, webhook itself should be registered with {@link #registerWebhook(String, String)}.
+     * Could be tested locally by posting update JSON to the address.
+     * @param path path of the webhook, e.g. "/telegram"
+     * @param secretToken nullable, value expected in X-Telegram-Bot-Api-Secret-Token header
+     */
+    public synchronized void startWebhook(InetSocketAddress address, String path, String secretToken) {
+        if (webhookServer != null)
+            throw new IllegalStateException("Webhook is already started");
+
+        try {
+            webhookServer = new WebhookServer(address, path, secretToken, this::dispatchUpdateNoThrow);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to start webhook server on " + address, e);
+        }
+
+        webhookServer.start();
+        scheduleContextExpiry();
+    }
+
+    public synchronized void stopWebhook() {
+        if (webhookServer == null)
+            return;
+
+        webhookServer.stop();
+        webhookServer = null;
+    }
+
+    /**
+     * Tells telegram to push updates to the url, which should lead to the server started with
+     * {@link #startWebhook(InetSocketAddress, String, String)}
+     * @param secretToken nullable, the same token as passed to the server
+     */
+    public BaseResponse registerWebhook(String url, String secretToken) {
+        final var rq = new SetWebhook().url(url).allowedUpdates(allowedUpdates());
+        if (secretToken != null)
+            rq.secretToken(secretToken);
+
+        return sendRequest(rq);
+    }
+
+    public BaseResponse deleteWebhook() {
+        return sendRequest(new DeleteWebhook());
+    }
+
+    private String[] allowedUpdates() {
+        final var updateList = new ArrayList<>(List.of("message", "callback_query", "pre_checkout_query"));
+
+        if (onChatMemberUpdated != null)
+            updateList.add("chat_member");
+
+        if (onChatJoinRequest != null)
+            updateList.add("chat_join_request");
+
+        return updateList.toArray(new String[]{});
+    }
+
+    /**
+     * Sends the request and waits for the response. Requests addressed to a chat wait for its flood limit first:
+     * a private chat gets a burst of 3 messages, then 1 per second, so a handler which sends more blocks the chat's
+     * updates for about a second per extra message. Use {@link #sendRequestAsync} to not wait.
+     */
     public <T extends BaseResponse> T sendRequest(BaseRequest<?, T> request) {
-        log.debug("Sending TG bot request, {}: {}", request.getClass(), request.getParameters().get("text"));
-        final T response = telegramBot.execute(request);
-        if (!response.isOk()) {
-            log.error("FAIL RESPONSE FOR {}: {}: {}", request.getClass(),
-                    response.getClass(), response.description());
-            throw new RuntimeException("Request failed: " + response);
+        try {
+            return sendRequestAsync(request).join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+
+            throw e;
         }
+    }
+
+    /**
+     * Non-blocking version of {@link #sendRequest}. Requests addressed to a chat are queued by the outbound
+     * scheduler until flood limits allow to send them. The returned future is completed on the HTTP client thread,
+     * failed requests complete it exceptionally with {@link TgRequestException}.
+     */
+    public <T extends BaseResponse> CompletableFuture<T> sendRequestAsync(BaseRequest<?, T> request) {
+        final var scheduler = outboundScheduler;
+        final var chatId = request.getParameters().get("chat_id");
+        if (scheduler == null || chatId == null)
+            return executeAsync(request);
+
+        return scheduler.submit(chatId, coalesceKey(request), () -> executeAsync(request));
+    }
+
+    private Object coalesceKey(BaseRequest<?, ?> request) {
+        if (!coalesceEdits)
+            return null;
 
-        return response;
+        final var msgId = request.getParameters().get("message_id");
+        if (msgId == null)
+            return null;
+
+        if (request instanceof EditMessageText || request instanceof EditMessageReplyMarkup ||
+                request instanceof EditMessageMedia || request instanceof EditMessageCaption)
+            return List.of(request.getClass(), msgId);
+
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <T extends BaseResponse> CompletableFuture<T> executeAsync(BaseRequest<?, T> request) {
+        log.debug("Sending TG bot request, {}: {}", request.getClass(), request.getParameters().get("text"));
+        final var future = new CompletableFuture<T>();
+        telegramBot.execute((BaseRequest) request, new Callback() {
+            @Override
+            public void onResponse(BaseRequest rq, BaseResponse response) {
+                if (response.isOk()) {
+                    future.complete((T) response);
+                    return;
+                }
+
+                log.error("FAIL RESPONSE FOR {}: {}: {}", rq.getClass(),
+                        response.getClass(), response.description());
+                future.completeExceptionally(new TgRequestException("Request failed: " + response, response));
+            }
+
+            @Override
+            public void onFailure(BaseRequest rq, IOException e) {
+                log.error("Unable to send request {}", rq.getClass(), e);
+                future.completeExceptionally(new TgRequestException("Request failed: " + rq.getClass(), e));
+            }
+        });
+
+        return future;
     }
 
     public InputHandler getDefaultInputHandler() {
@@ -139,6 +621,7 @@ public class TgBot {
                     if (getStartMenu() == null) {
                         chat.sendLocalizedMessage("core.noMenuAvailable");
                     } else {
+                        // Input is handled in the chat's dispatcher lane, next updates wait for the menu
                         chat.sendMenu(getStartMenu());
                     }
                 }
@@ -152,15 +635,20 @@ public class TgBot {
     }
 
     /**
-     * Scanning package and looking for child types of ${@link CallbackHandler}. If these classes have no-args
+     * Looking for child types of ${@link CallbackHandler} in the package. If these classes have no-args
      * constructor, they're being instanced and registered with this method.
+     * Handlers are taken from the index generated at compile time by {@link CallbackHandlerIndexProcessor},
+     * classpath is scanned with Reflections only if the index has no handlers of the package.
      * @param packageToScan package to scan recursively
      */
     public void registerCallbackHandlers(String packageToScan) {
-        final var ref = new Reflections(packageToScan, Scanners.SubTypes);
-        final var set = ref.getSubTypesOf(CallbackHandler.class);
+        var handlerClasses = indexedCallbackHandlers(packageToScan);
+        if (handlerClasses.isEmpty()) {
+            log.info("No indexed callback handlers in {}, scanning classpath", packageToScan);
+            handlerClasses = scanCallbackHandlers(packageToScan);
+        }
 
-        for (var callbackClass : set) {
+        for (var callbackClass : handlerClasses) {
             log.info("Registering {}", callbackClass.toString());
             try {
                 final var instance = callbackClass.getConstructor().newInstance();
@@ -173,22 +661,160 @@ public class TgBot {
         }
     }
 
+    private Set<Class<? extends CallbackHandler>> indexedCallbackHandlers(String packageToScan) {
+        final var result = new LinkedHashSet<Class<? extends CallbackHandler>>();
+        final var classLoader = Thread.currentThread().getContextClassLoader() != null ?
+                Thread.currentThread().getContextClassLoader() : TgBot.class.getClassLoader();
+
+        try {
+            final var indexes = classLoader.getResources(CallbackHandlerIndexProcessor.INDEX_RESOURCE);
+            while (indexes.hasMoreElements()) {
+                final var index = indexes.nextElement();
+                try (var reader = new BufferedReader(
+                        new InputStreamReader(index.openStream(), StandardCharsets.UTF_8))) {
+                    String className;
+                    while ((className = reader.readLine()) != null) {
+                        className = className.trim();
+                        if (className.isEmpty() || !isInPackage(className, packageToScan))
+                            continue;
+
+                        try {
+                            result.add(Class.forName(className, false, classLoader).asSubclass(CallbackHandler.class));
+                        } catch (ClassNotFoundException | ClassCastException e) {
+                            log.warn("Indexed callback handler {} couldn't be loaded", className, e);
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            log.error("Unable to read callback handler index", e);
+        }
+
+        return result;
+    }
+
+    private static boolean isInPackage(String className, String packageName) {
+        return packageName.isEmpty() ||
+                className.startsWith(packageName) && className.length() > packageName.length() &&
+                className.charAt(packageName.length()) == '.';
+    }
+
+    private Set<Class<? extends CallbackHandler>> scanCallbackHandlers(String packageToScan) {
+        try {
+            final var ref = new Reflections(packageToScan, Scanners.SubTypes);
+            return ref.getSubTypesOf(CallbackHandler.class);
+        } catch (NoClassDefFoundError e) {
+            log.error("No callback handlers are indexed in {} and Reflections isn't on the classpath. " +
+                    "Enable annotation processing to generate the index", packageToScan);
+            return Set.of();
+        }
+    }
+
     public <T extends CallbackHandler> void registerCallbackHandler(T callbackHandler) {
-        if (callbackDataHandlers.containsKey(callbackHandler.tag))
+        if (!callbackDataHandlers.register(callbackHandler.tag, callbackHandler))
             throw new RuntimeException("This callback handler is already registered.");
+    }
+
+    protected ChatUpdateDispatcher getDispatcher() {
+        var result = dispatcher;
+        if (result == null) {
+            synchronized (this) {
+                result = dispatcher;
+                if (result == null) {
+                    final var executor = updateExecutor != null ?
+                            updateExecutor : Executors.newVirtualThreadPerTaskExecutor();
+                    result = dispatcher = new ChatUpdateDispatcher(executor, updateQueueDepth);
+                }
+            }
+        }
 
-        callbackDataHandlers.put(callbackHandler.tag, callbackHandler);
+        return result;
     }
 
     /* Never throws */
     private void processUpdatesNoThrow(List<Update> updates) {
         for (Update u : updates) {
-            try {
-                processUpdate(u);
-            } catch (Throwable t) {
-                log.error("An error during processing update {}", u.toString(), t);
+            if (!dispatchUpdateNoThrow(u) && Thread.currentThread().isInterrupted())
+                return;
+        }
+    }
+
+    /*
+     * Never throws. Only an interrupt makes the caller receive the update again, since the queue applies
+     * backpressure by blocking. Any other failure would repeat, so such an update is logged and skipped
+     * @return false if the update should be received again
+     */
+    private boolean dispatchUpdateNoThrow(Update update) {
+        try {
+            final var key = dispatchKey(update);
+            final var message = update.message();
+            final var groupAggregator = mediaGroupAggregator;
+            if (groupAggregator != null && message != null && message.mediaGroupId() != null) {
+                // Next messages of the album are only collected, the first one waits for the whole album
+                final var album = groupAggregator.add(key + ":" + message.mediaGroupId(), message);
+                if (album != null)
+                    getDispatcher().dispatch(key, () -> processMediaGroupNoThrow(album));
+
+                return true;
             }
-        };
+
+            getDispatcher().dispatch(key, () -> processUpdateNoThrow(update));
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while dispatching update {}", update.toString(), e);
+            return false;
+        } catch (Throwable t) {
+            // Receiving the update again would fail the same way and block all updates after it
+            log.error("An error during dispatching update {}, the update is skipped", update.toString(), t);
+            return true;
+        }
+    }
+
+    /* Never throws */
+    private void processMediaGroupNoThrow(CompletableFuture<List<Message>> album) {
+        try {
+            processMediaGroup(album.join());
+        } catch (Throwable t) {
+            log.error("An error during processing media group", t);
+        }
+    }
+
+    /* Never throws */
+    private void processUpdateNoThrow(Update update) {
+        try {
+            processUpdate(update);
+        } catch (Throwable t) {
+            log.error("An error during processing update {}", update.toString(), t);
+        }
+    }
+
+    /**
+     * Updates with the same key are processed strictly in order, so the key is chat id when it's known,
+     * otherwise it's id of user the update came from.
+     */
+    private static Long dispatchKey(Update update) {
+        if (update.message() != null && update.message().chat() != null)
+            return update.message().chat().id();
+
+        if (update.callbackQuery() != null) {
+            final var message = update.callbackQuery().maybeInaccessibleMessage();
+            if (message != null && message.chat() != null)
+                return message.chat().id();
+
+            return update.callbackQuery().from().id();
+        }
+
+        if (update.preCheckoutQuery() != null)
+            return update.preCheckoutQuery().from().id();
+
+        if (update.chatMember() != null)
+            return update.chatMember().chat().id();
+
+        if (update.chatJoinRequest() != null)
+            return update.chatJoinRequest().chat().id();
+
+        return 0L;
     }
 
     private void processUpdate(Update update) {
@@ -233,9 +859,7 @@ public class TgBot {
     }
 
     protected Optional<TgChat> getChat(Long userId) {
-        return chats.values().stream()
-                .filter(c -> c.clientId.equals(userId))
-                .findAny();
+        return chats.getByUser(userId);
     }
 
     private void processMessage(PreCheckoutQuery preCheckoutQuery) {
@@ -274,6 +898,37 @@ public class TgBot {
             return;
         }
 
+        handleInput(chat, msgInfo, inputText);
+    }
+
+    /**
+     * All messages of an album are handled as a single input with attachments of every message.
+     */
+    private void processMediaGroup(List<Message> messages) {
+        final var first = messages.get(0);
+        final var chat = getChat(first.chat(), first.from());
+        final var firstInfo = extractMessageInfo(first);
+        final var attachments = new ArrayList<>(firstInfo.attachments());
+        String inputText = formatWithEntities(first);
+
+        for (var message : messages.subList(1, messages.size())) {
+            attachments.addAll(extractAttachments(message));
+            if (inputText.isEmpty())
+                inputText = formatWithEntities(message);
+        }
+
+        final var msgInfo = new InputHandler.MessageInfo(firstInfo.isForward(), firstInfo.forwardChatId(),
+                attachments, firstInfo.originalMessageId(), firstInfo.mediaGroupId());
+
+        if (inputText.isEmpty() && attachments.isEmpty() && !msgInfo.isForward()) {
+            chat.sendLocalizedMessage("core.notTextError");
+            return;
+        }
+
+        handleInput(chat, msgInfo, inputText);
+    }
+
+    private void handleInput(TgChat chat, InputHandler.MessageInfo msgInfo, String inputText) {
         try {
             chat.handleInput(msgInfo, inputText);
         } catch (Throwable t) {
@@ -302,42 +957,72 @@ public class TgBot {
         final var list = new ArrayList<InputHandler.Attachment>();
 
         if (message.animation() != null) {
-            final var data = downloadFile(message.animation().fileId());
-            list.add(new InputHandler.Attachment(false, true, data, mimeFromPath(message.animation().fileName())));
+            final var animation = message.animation();
+            list.add(new InputHandler.Attachment(false, true, animation.fileId(), animation.fileUniqueId(),
+                    animation.fileSize(), mimeFromPath(animation.fileName()), fileSource));
             return list;
         }
 
         if (message.video() != null) {
-            final var data = downloadFile(message.video().fileId());
-            list.add(new InputHandler.Attachment(true, false, data, mimeFromPath(message.video().fileName())));
+            final var video = message.video();
+            list.add(new InputHandler.Attachment(true, false, video.fileId(), video.fileUniqueId(),
+                    video.fileSize(), mimeFromPath(video.fileName()), fileSource));
             return list;
         }
 
         if (message.photo() != null && message.photo().length > 0) {
             final var sizes = message.photo();
             final var best = sizes[sizes.length - 1];
-            final var data = downloadFile(best.fileId());
-            list.add(new InputHandler.Attachment(false, false, data, mimeFromPath(best.fileId())));
+            list.add(new InputHandler.Attachment(false, false, best.fileId(), best.fileUniqueId(),
+                    best.fileSize(), mimeFromPath(best.fileId()), fileSource));
             return list;
         }
 
         if (message.document() != null && message.document().mimeType() != null &&
                 message.document().mimeType().startsWith("image")) {
-            final var data = downloadFile(message.document().fileId());
-            list.add(new InputHandler.Attachment(false, false, data, message.document().mimeType()));
+            final var document = message.document();
+            list.add(new InputHandler.Attachment(false, false, document.fileId(), document.fileUniqueId(),
+                    document.fileSize(), document.mimeType(), fileSource));
         }
 
         return list;
     }
 
-    private byte[] downloadFile(String fileId) {
-        final GetFileResponse rs = telegramBot.execute(new GetFile(fileId));
-        final var file = rs.file();
-        try {
-            return telegramBot.getFileContent(file);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
+    /**
+     * Downloads file content in background, so the calling thread isn't blocked.
+     */
+    public CompletableFuture<byte[]> downloadFileAsync(String fileId) {
+        return sendRequestAsync(new GetFile(fileId)).thenApplyAsync(rs -> {
+            try {
+                try (var body = fetchFile(rs.file())) {
+                    return body.bytes();
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, downloadExecutor);
+    }
+
+    /**
+     * Opens file content as a stream without buffering it in memory. Blocks until the file is located.
+     */
+    public InputStream openFile(String fileId) throws IOException {
+        final GetFileResponse rs = sendRequest(new GetFile(fileId));
+        return fetchFile(rs.file()).byteStream();
+    }
+
+    /**
+     * Requests the file through the bot's http client, the caller has to close the body.
+     */
+    private ResponseBody fetchFile(File file) throws IOException {
+        final var response = httpClient.newCall(new Request.Builder().url(telegramBot.getFullFilePath(file)).build())
+                .execute();
+        if (!response.isSuccessful()) {
+            response.close();
+            throw new IOException("Failed to download file " + file.fileId() + ": HTTP " + response.code());
         }
+
+        return response.body();
     }
 
     private String mimeFromPath(String path) {
@@ -354,125 +1039,25 @@ public class TgBot {
     private String formatWithEntities(Message message) {
         final var text = message.text() != null ? message.text() :
                 (message.caption() != null ? message.caption() : "");
-        if (text == null)
-            return "";
 
         final var entities = message.entities() != null ? message.entities() : message.captionEntities();
-        if (entities == null || entities.length == 0)
-            return escapeHtml(text);
-
-        final var events = new TreeMap<Integer, Boundary>();
-        for (MessageEntity e : entities) {
-            final int start = Math.min(e.offset(), text.length());
-            final int end = Math.min(e.offset() + e.length(), text.length());
-            events.computeIfAbsent(start, __ -> new Boundary()).starts.add(e);
-            events.computeIfAbsent(end, __ -> new Boundary()).ends.add(e);
-        }
-
-        final var sb = new StringBuilder();
-        final var stack = new ArrayList<MessageEntity>();
-        int cursor = 0;
-        for (var entry : events.entrySet()) {
-            final int pos = entry.getKey();
-            if (cursor < pos) {
-                sb.append(escapeHtml(text.substring(cursor, pos)));
-            }
-
-            // Close entities that end here (from inner to outer)
-            final var toClose = entry.getValue().ends;
-            if (!toClose.isEmpty()) {
-                final var closeSet = new HashSet<>(toClose);
-                for (int i = stack.size() - 1; i >= 0; i--) {
-                    if (closeSet.contains(stack.get(i))) {
-                        sb.append(closeTag(stack.remove(i)));
-                    }
-                }
-            }
-
-            // Open entities that start here (outer first -> longer first)
-            final var toOpen = entry.getValue().starts.stream()
-                    .sorted(Comparator.<MessageEntity>comparingInt(e -> e.length()).reversed())
-                    .toList();
-            for (MessageEntity e : toOpen) {
-                stack.add(e);
-                sb.append(openTag(e));
-            }
-
-            cursor = pos;
-        }
-
-        if (cursor < text.length()) {
-            sb.append(escapeHtml(text.substring(cursor)));
-        }
-
-        // Close any remaining entities
-        for (int i = stack.size() - 1; i >= 0; i--) {
-            sb.append(closeTag(stack.get(i)));
-        }
-
-        return sb.toString();
-    }
-
-    private String openTag(MessageEntity e) {
-        return switch (e.type()) {
-            case bold -> "<b>";
-            case italic -> "<i>";
-            case underline -> "<u>";
-            case strikethrough -> "<s>";
-            case spoiler -> "<span class=\"tg-spoiler\">";
-            case code -> "<code>";
-            case pre -> "<pre>";
-            case text_link -> "<a href=\"" + escapeHtml(e.url()) + "\">";
-            default -> "";
-        };
-    }
-
-    private String closeTag(MessageEntity e) {
-        return switch (e.type()) {
-            case bold -> "</b>";
-            case italic -> "</i>";
-            case underline -> "</u>";
-            case strikethrough -> "</s>";
-            case spoiler -> "</span>";
-            case code -> "</code>";
-            case pre -> "</pre>";
-            case text_link -> "</a>";
-            default -> "";
-        };
-    }
-
-    private String escapeHtml(String s) {
-        if (s == null) return "";
-        return s.replace("&", "&amp;")
-                .replace("<", "&lt;")
-                .replace(">", "&gt;");
-    }
-
-    private static class Boundary {
-        List<MessageEntity> starts = new ArrayList<>();
-        List<MessageEntity> ends = new ArrayList<>();
+        return EntityHtmlFormatter.format(text, entities);
     }
 
     private void processMessage(CallbackQuery callbackQuery) {
-        final Chat tgChat;
-        final Integer msgId;
-        try {
-            final Field f = callbackQuery.getClass().getDeclaredField("message");
-            if (f.canAccess(callbackQuery) || f.trySetAccessible()) {
-                final MaybeInaccessibleMessage message = (MaybeInaccessibleMessage) f.get(callbackQuery);
-                tgChat = message.chat();
-                msgId = message.messageId();
-            } else throw new RuntimeException("Unable to extract chat from query: " + callbackQuery);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
+        final MaybeInaccessibleMessage message = callbackQuery.maybeInaccessibleMessage();
+        if (message == null)
+            throw new RuntimeException("Unable to extract chat from query: " + callbackQuery);
+
+        final Chat tgChat = message.chat();
+        final Integer msgId = message.messageId();
 
         final var chat = getChat(tgChat, callbackQuery.from());
 
         try {
             if (!handleCallbackData(callbackQuery.data(), chat, msgId)) {
                 log.error("An issue while processing callback: {}. " +
-                        "This may be caused by server restart so message context where reinitialized.", callbackQuery.data());
+                        "This may be caused by server restart or eviction of message context.", callbackQuery.data());
                 chat.editMessage(msgId, chat.vocabulary.get("core.rottenMenu"));
             }
 
@@ -486,20 +1071,25 @@ public class TgBot {
     }
 
     private boolean handleCallbackData(String callbackData, TgChat chat, Integer msgId) {
-        final var split = callbackData.split(TAG_PAYLOAD_SPLIT_STRING, 2);
-        final var tag = split[0];
-        final var payload = Base64.getDecoder().decode(
-                split[1].getBytes(StandardCharsets.UTF_8)
-        );
+        // Tag is resolved in place and payload is decoded into the context, so a callback allocates nothing
+        final int split = callbackData.indexOf(TAG_PAYLOAD_SPLIT_CHAR);
+        final int tagEnd = split < 0 ? callbackData.length() : split;
+        final var handler = callbackDataHandlers.get(callbackData, 0, tagEnd);
+        if (handler == null)
+            return false;
 
-        if (!callbackDataHandlers.containsKey(tag))
+        final var context = chat.getLiveContextFor(msgId);
+        if (context == null)
             return false;
 
-        final var handler = callbackDataHandlers.get(tag);
-        final var context = chat.getContextFor(msgId);
-        context.setPayload(payload);
+        if (split < 0) {
+            context.setPayload(EMPTY_PAYLOAD);
+        } else {
+            context.decodePayload(CallbackReference.getCodec(), callbackData, split + 1, callbackData.length());
+        }
 
         handler.accept(context);
+        chat.persistContext(msgId, context);
 
         return true;
     }
@@ -2,19 +2,21 @@ package com.example.lib;
 
 import com.example.lib.context.ExistingMessageContext;
 import com.example.lib.context.InteractiveMessageContext;
+import com.example.lib.internals.MessageContextCache;
 import com.example.lib.menu.MenuInfoSupplier;
-import com.example.lib.menu.button.MenuButton;
+import com.example.lib.menu.RenderedMenu;
 import com.example.lib.model.Invoice;
 import com.pengrad.telegrambot.model.request.*;
 import com.pengrad.telegrambot.request.*;
+import com.pengrad.telegrambot.response.BaseResponse;
 import com.pengrad.telegrambot.response.SendResponse;
 import org.example.lib.Vocabulary;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.TimeUnit;
 
 public class TgChat {
@@ -24,7 +26,7 @@ public class TgChat {
     public final Long chatId;
     public final TgBot tgBot;
 
-    private final ConcurrentHashMap<Integer, InteractiveMessageContext> messageContexts = new ConcurrentHashMap<>();
+    private final MessageContextCache messageContexts;
 
     public InputHandler inputHandler = null;
     public Vocabulary vocabulary = Vocabulary.make(Locale.US);
@@ -33,59 +35,82 @@ public class TgChat {
         this.clientId = clientId;
         this.chatId = chatId;
         this.tgBot = tgBot;
+        this.messageContexts = new MessageContextCache(
+                tgBot != null ? tgBot.getMessageContextLimits() : MessageContextCache.Limits.defaults());
     }
 
     protected SendResponse sendMessageWithInlineMarkup(String message, InlineKeyboardMarkup markup) {
-        final SendMessage request = new SendMessage(chatId, message);
-        request.parseMode(ParseMode.MarkdownV2);
-        request.replyMarkup(markup);
-//        request.disableWebPagePreview(true);
-        return tgBot.sendRequest(request);
+        return tgBot.sendRequest(createSendMessage(message, markup));
+    }
+
+    protected CompletableFuture<SendResponse> sendMessageWithInlineMarkupAsync(String message,
+                                                                               InlineKeyboardMarkup markup) {
+        return tgBot.sendRequestAsync(createSendMessage(message, markup));
     }
 
     public void sendMessage(String message) {
-        final SendMessage request = new SendMessage(chatId, message);
-        request.parseMode(ParseMode.MarkdownV2);
-//        request.disableWebPagePreview(true);
-        tgBot.sendRequest(request);
+        tgBot.sendRequest(createSendMessage(message, null));
+    }
+
+    public CompletableFuture<SendResponse> sendMessageAsync(String message) {
+        return tgBot.sendRequestAsync(createSendMessage(message, null));
     }
 
     public void sendLocalizedMessage(String key) {
         sendMessage(vocabulary.get(key));
     }
 
+    public CompletableFuture<SendResponse> sendLocalizedMessageAsync(String key) {
+        return sendMessageAsync(vocabulary.get(key));
+    }
+
     public void sendMessage(String message, Keyboard markup) {
-        final SendMessage request = new SendMessage(chatId, message);
-        request.replyMarkup(markup);
-        request.parseMode(ParseMode.MarkdownV2);
-//        request.disableWebPagePreview(true);
-        tgBot.sendRequest(request);
+        tgBot.sendRequest(createSendMessage(message, markup));
+    }
+
+    public CompletableFuture<SendResponse> sendMessageAsync(String message, Keyboard markup) {
+        return tgBot.sendRequestAsync(createSendMessage(message, markup));
     }
 
     public void sendLocalizedMessage(String key, Keyboard markup) {
         sendMessage(vocabulary.get(key), markup);
     }
 
+    public CompletableFuture<SendResponse> sendLocalizedMessageAsync(String key, Keyboard markup) {
+        return sendMessageAsync(vocabulary.get(key), markup);
+    }
+
     public void sendImage(byte[] data, String caption) {
-        final SendPhoto request = new SendPhoto(chatId, data);
-        request.caption(caption);
-        request.parseMode(ParseMode.MarkdownV2);
-        tgBot.sendRequest(request);
+        tgBot.sendRequest(createSendPhoto(data, caption));
+    }
+
+    public CompletableFuture<SendResponse> sendImageAsync(byte[] data, String caption) {
+        return tgBot.sendRequestAsync(createSendPhoto(data, caption));
     }
 
     public void sendMenu(MenuInfoSupplier menu) {
-        try {
-            final var ctx = new InteractiveMessageContext(this);
-            final var future = menu.create(this, ctx);
-            ctx.latestMenuSupplier = menu;
-            final var menuData = future.get(10, TimeUnit.SECONDS);
-            final var keyboardMarkup = createMarkupFromMenu(null, menuData.buttons);
-            final var rs = sendMessageWithInlineMarkup(menuData.message, keyboardMarkup);
-            messageContexts.put(rs.message().messageId(), ctx);
-        } catch (Exception e) {
-            log.error("", e);
-            sendLocalizedMessage("core.internalError");
-        }
+        join(sendMenuAsync(menu));
+    }
+
+    /**
+     * Renders the menu and sends it without blocking the caller. If the menu isn't rendered within its timeout
+     * or fails, "core.internalError" is sent instead.
+     * @return future completed when the menu or the error message is sent
+     */
+    public CompletableFuture<Void> sendMenuAsync(MenuInfoSupplier menu) {
+        final var ctx = new InteractiveMessageContext(this);
+        // Buttons of a new message get no context, as the message isn't sent yet
+        final var future = renderMenu(menu, ctx, null);
+        ctx.latestMenuSupplier = menu;
+
+        return future
+                .thenCompose(rendered -> sendMessageWithInlineMarkupAsync(rendered.message, rendered.markup)
+                        .thenAcceptAsync(rs -> {
+                            ctx.setShownMenu(rendered);
+                            messageContexts.put(rs.message().messageId(), ctx);
+                            persistContext(rs.message().messageId(), ctx);
+                        }, tgBot.getContextStoreExecutor()))
+                .exceptionallyCompose(this::reportMenuError);
     }
 
     public void sendInvoice(Invoice invoice) {
@@ -97,40 +122,120 @@ public class TgChat {
     }
 
     public void editMessage(Integer msgId, String message, InlineKeyboardMarkup markup) {
-        final EditMessageText request = new EditMessageText(chatId, msgId, message);
-//        request.disableWebPagePreview(true);
-        request.parseMode(ParseMode.MarkdownV2);
-        if (markup != null) {
-            request.replyMarkup(markup);
-        }
+        forgetShownMenu(msgId);
+        tgBot.sendRequest(createEditMessageText(msgId, message, markup));
+    }
 
-        tgBot.sendRequest(request);
+    public CompletableFuture<BaseResponse> editMessageAsync(Integer msgId, String message,
+                                                            InlineKeyboardMarkup markup) {
+        forgetShownMenu(msgId);
+        return tgBot.sendRequestAsync(createEditMessageText(msgId, message, markup));
     }
 
     public void editMessage(Integer msgId, String message) {
         editMessage(msgId, message, null);
     }
 
+    public CompletableFuture<BaseResponse> editMessageAsync(Integer msgId, String message) {
+        return editMessageAsync(msgId, message, null);
+    }
+
     public void editImage(Integer msgId, byte[] data) {
-        final EditMessageMedia request = new EditMessageMedia(chatId, msgId, new InputMediaPhoto(data));
-        tgBot.sendRequest(request);
+        forgetShownMenu(msgId);
+        tgBot.sendRequest(new EditMessageMedia(chatId, msgId, new InputMediaPhoto(data)));
+    }
+
+    public CompletableFuture<BaseResponse> editImageAsync(Integer msgId, byte[] data) {
+        forgetShownMenu(msgId);
+        return tgBot.sendRequestAsync(new EditMessageMedia(chatId, msgId, new InputMediaPhoto(data)));
     }
 
     public void editMenu(Integer msgId, MenuInfoSupplier newMenu) {
+        join(editMenuAsync(msgId, newMenu));
+    }
+
+    /**
+     * Renders the menu and puts it to the message without blocking the caller. If the menu isn't rendered within
+     * its timeout or fails, "core.internalError" is sent instead.
+     * @return future completed when the message is edited or the error message is sent
+     */
+    public CompletableFuture<Void> editMenuAsync(Integer msgId, MenuInfoSupplier newMenu) {
+        final InteractiveMessageContext ctx;
+        final CompletableFuture<RenderedMenu> future;
         try {
-            final var ctx = getContextFor(msgId);
-            final var future = newMenu.create(this, ctx);
+            ctx = getContextFor(msgId);
+            future = renderMenu(newMenu, ctx, ctx);
             ctx.latestMenuSupplier = newMenu;
-            final var menuData = future.get(10, TimeUnit.SECONDS);
-            final var keyboardMarkup = createMarkupFromMenu(ctx, menuData.buttons);
-            editMessage(msgId, menuData.message, keyboardMarkup);
-        } catch (Exception e) {
-            log.error("", e);
-            sendLocalizedMessage("core.internalError");
+        } catch (Throwable t) {
+            return reportMenuError(t);
         }
+
+        return future
+                .thenCompose(rendered -> showMenu(msgId, ctx, rendered))
+                .exceptionallyCompose(this::reportMenuError);
+    }
+
+    /*
+     * Sends only the difference between the shown menu and the new one: nothing if they're identical,
+     * keyboard only if the text is the same. The context is saved on the context store executor, since
+     * the edit completes on a thread of the HTTP client
+     */
+    private CompletableFuture<Void> showMenu(Integer msgId, InteractiveMessageContext ctx, RenderedMenu rendered) {
+        final CompletableFuture<? extends BaseResponse> edit;
+        if (ctx.isTextShown(rendered)) {
+            edit = ctx.isMarkupShown(rendered) ? CompletableFuture.completedFuture(null) :
+                    tgBot.sendRequestAsync(new EditMessageReplyMarkup(chatId, msgId).replyMarkup(rendered.markup));
+        } else {
+            edit = tgBot.sendRequestAsync(createEditMessageText(msgId, rendered.message, rendered.markup));
+        }
+
+        return edit.thenAcceptAsync(rs -> {
+            ctx.setShownMenu(rendered);
+            persistContext(msgId, ctx);
+        }, tgBot.getContextStoreExecutor());
+    }
+
+    private void forgetShownMenu(Integer msgId) {
+        final var ctx = messageContexts.get(msgId);
+        if (ctx != null)
+            ctx.setShownMenu(null);
+    }
+
+    /*
+     * Rendering is limited by the menu timeout, the rendered future is copied since it could be shared by
+     * cached menus
+     */
+    /*
+     * Rethrows failures the same way as TgBot.sendRequest does
+     */
+    private static void join(CompletableFuture<Void> future) {
+        try {
+            future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException cause)
+                throw cause;
+
+            throw e;
+        }
+    }
+
+    private CompletableFuture<RenderedMenu> renderMenu(MenuInfoSupplier menu, InteractiveMessageContext ctx,
+                                                       InteractiveMessageContext buttonCtx) {
+        final var timeout = menu.getTimeout() != null ? menu.getTimeout() : tgBot.getMenuTimeout();
+        try {
+            return menu.render(this, ctx, buttonCtx).copy().orTimeout(timeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (Throwable t) {
+            return CompletableFuture.failedFuture(t);
+        }
+    }
+
+    private CompletableFuture<Void> reportMenuError(Throwable t) {
+        log.error("Unable to show menu in chat {}", chatId, t);
+        return sendLocalizedMessageAsync("core.internalError").thenAccept(rs -> { });
     }
 
     public void removeButtonsFromMessage(Integer msgId) {
+        forgetShownMenu(msgId);
         final var request = new EditMessageReplyMarkup(chatId, msgId);
         tgBot.sendRequest(request);
     }
@@ -147,7 +252,30 @@ public class TgChat {
     }
 
     public InteractiveMessageContext getContextFor(Integer msgId) {
-        final var ctx = messageContexts.computeIfAbsent(msgId, __ -> new ExistingMessageContext(this, msgId));
+        return getContextFor(msgId, false);
+    }
+
+    /**
+     * Same as {@link #getContextFor}, but returns null if the context of this message was evicted,
+     * so the message should be considered outdated.
+     */
+    public InteractiveMessageContext getLiveContextFor(Integer msgId) {
+        return getContextFor(msgId, true);
+    }
+
+    /*
+     * The store is read at most once per call: a missing stored context is replaced by a new one right away
+     */
+    private InteractiveMessageContext getContextFor(Integer msgId, boolean live) {
+        var ctx = messageContexts.get(msgId);
+        if (ctx == null) {
+            final var stored = loadStoredContext(msgId);
+            if (stored == null && live && messageContexts.wasEvicted(msgId))
+                return null;
+
+            ctx = messageContexts.computeIfAbsent(msgId,
+                    __ -> stored != null ? stored : new ExistingMessageContext(this, msgId));
+        }
 
         // Upgrading context to an ExistingMessage
         if (!(ctx instanceof ExistingMessageContext)) {
@@ -158,19 +286,87 @@ public class TgChat {
         return ctx;
     }
 
-    private InlineKeyboardMarkup createMarkupFromMenu(InteractiveMessageContext ctx,
-                                                      List<List<MenuButton>> layout) {
-        final var mappedRows = layout.stream()
-                .map(row -> row.stream()
-                        .map(btn -> btn.getInlineKeyboardButton(ctx)).toList()
-                        .toArray(new InlineKeyboardButton[] {})
-                ).toList();
+    /**
+     * Saves current state of the message context to the bot's message context store, if there is one.
+     */
+    public void persistContext(Integer msgId, InteractiveMessageContext ctx) {
+        final var store = tgBot.getMessageContextStore();
+        if (store == null || ctx == null)
+            return;
+
+        try {
+            store.save(this, msgId, ctx);
+        } catch (Throwable t) {
+            log.error("Unable to persist context of message {}", msgId, t);
+        }
+    }
+
+    private InteractiveMessageContext loadStoredContext(Integer msgId) {
+        final var store = tgBot.getMessageContextStore();
+        if (store == null)
+            return null;
+
+        try {
+            return store.load(this, msgId);
+        } catch (Throwable t) {
+            log.error("Unable to load context of message {}", msgId, t);
+            return null;
+        }
+    }
 
-        final var markup = new InlineKeyboardMarkup();
-        for (var row : mappedRows) {
-            markup.addRow(row);
+    /**
+     * Drops all message contexts of the chat, so their memory is released.
+     */
+    public void clearContexts() {
+        messageContexts.clear();
+    }
+
+    /**
+     * Drops contexts of messages sent earlier than the context TTL ago.
+     */
+    public void evictExpiredContexts() {
+        messageContexts.evictExpired();
+    }
+
+    /**
+     * @return highest id of messages whose contexts were evicted, see {@link MessageContextCache#getEvictedWatermark()}
+     */
+    public int getEvictedContextWatermark() {
+        return messageContexts.getEvictedWatermark();
+    }
+
+    /**
+     * Marks contexts of messages up to the id as evicted, e.g. when the chat is created again after eviction.
+     */
+    public void restoreEvictedContextWatermark(int watermark) {
+        messageContexts.raiseEvictedWatermark(watermark);
+    }
+
+    private SendMessage createSendMessage(String message, Keyboard markup) {
+        final SendMessage request = new SendMessage(chatId, message);
+        request.parseMode(ParseMode.MarkdownV2);
+        if (markup != null) {
+            request.replyMarkup(markup);
+        }
+//        request.disableWebPagePreview(true);
+        return request;
+    }
+
+    private SendPhoto createSendPhoto(byte[] data, String caption) {
+        final SendPhoto request = new SendPhoto(chatId, data);
+        request.caption(caption);
+        request.parseMode(ParseMode.MarkdownV2);
+        return request;
+    }
+
+    private EditMessageText createEditMessageText(Integer msgId, String message, InlineKeyboardMarkup markup) {
+        final EditMessageText request = new EditMessageText(chatId, msgId, message);
+//        request.disableWebPagePreview(true);
+        request.parseMode(ParseMode.MarkdownV2);
+        if (markup != null) {
+            request.replyMarkup(markup);
         }
 
-        return markup;
+        return request;
     }
 }
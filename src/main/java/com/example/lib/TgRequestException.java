@@ -0,0 +1,41 @@
+package com.example.lib;
+
+import com.pengrad.telegrambot.response.BaseResponse;
+
+/**
+ * Telegram responded with an error or the request couldn't be delivered at all.
+ */
+public class TgRequestException extends RuntimeException {
+    private final transient BaseResponse response;
+
+    public TgRequestException(String message, BaseResponse response) {
+        super(message);
+        this.response = response;
+    }
+
+    public TgRequestException(String message, Throwable cause) {
+        super(message, cause);
+        this.response = null;
+    }
+
+    /**
+     * nullable, null if request failed without a response from telegram
+     */
+    public BaseResponse getResponse() {
+        return response;
+    }
+
+    public int getErrorCode() {
+        return response != null ? response.errorCode() : 0;
+    }
+
+    /**
+     * nullable, amount of seconds telegram asks to wait before repeating the request
+     */
+    public Integer getRetryAfter() {
+        if (response == null || response.parameters() == null)
+            return null;
+
+        return response.parameters().retryAfter();
+    }
+}
@@ -3,35 +3,46 @@ package com.example.lib;
 import com.pengrad.telegrambot.model.request.ReplyKeyboardRemove;
 import com.example.lib.TgChat;
 import com.example.lib.context.InteractiveMessageContext;
+import com.example.lib.internals.FixedPointFormat;
 
 import java.nio.charset.StandardCharsets;
-import java.text.DecimalFormat;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
 import java.util.regex.Pattern;
 
 public class Utils {
-    private static final DecimalFormat bigNumberFormat = new DecimalFormat("#,###");
-    private static final DecimalFormat regularNumberFormat = new DecimalFormat("#,###.00");
-    private static final DecimalFormat partNumberFormat = new DecimalFormat("#.000");
-    private static final DecimalFormat smallestNumberFormat = new DecimalFormat("#.0000000");
+    // Formatters are immutable, so they are shared by all threads
+    private static final FixedPointFormat bigNumberFormat = new FixedPointFormat("#,###");
+    private static final FixedPointFormat regularNumberFormat = new FixedPointFormat("#,###.00");
+    private static final FixedPointFormat partNumberFormat = new FixedPointFormat("#.000");
+    private static final FixedPointFormat smallestNumberFormat = new FixedPointFormat("#.0000000");
+    private static final DateTimeFormatter dateFormat = DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm");
+
+    private static final boolean[] MD2_SPECIAL = new boolean[128];
+
+    static {
+        for (char ch : "_*[]()~`>#+-=|{}.!".toCharArray())
+            MD2_SPECIAL[ch] = true;
+    }
 
     public static Integer getIntFromPayload(InteractiveMessageContext context) {
-        if (!context.getPayload().hasRemaining()) {
+        final var payload = context.getPayload();
+        if (!payload.hasRemaining()) {
             throw new RuntimeException("No payload in the button");
         }
 
-        return context.getPayload().getInt();
+        return payload.getInt();
     }
 
     public static String getStringFromPayload(InteractiveMessageContext context, int len) {
-        if (!context.getPayload().hasRemaining()) {
+        final var payload = context.getPayload();
+        if (!payload.hasRemaining()) {
             throw new RuntimeException("No payload in the button");
         }
 
         final var buf = new byte[len];
-        context.getPayload().get(buf);
+        payload.get(buf);
 
         return new String(buf, StandardCharsets.UTF_8);
     }
@@ -53,13 +64,29 @@ public class Utils {
         if (message == null)
             return "";
 
-        final var toEscape = List.of('_', '*', '[', ']', '(', ')', '~', '`', '>', '#', '+', '-', '=', '|',
-                '{', '}', '.', '!' );
+        // Most messages have nothing to escape, so the original string is returned without copying
+        int first = 0;
+        while (first < message.length() && !isMd2Special(message.charAt(first)))
+            first++;
+
+        if (first == message.length())
+            return message;
+
+        // Runs of regular characters are copied at once
+        final var sb = new StringBuilder(message.length() + 16);
+        int run = 0;
+        for (int i = first; i < message.length(); i++) {
+            if (isMd2Special(message.charAt(i))) {
+                sb.append(message, run, i).append('\\');
+                run = i;
+            }
+        }
 
-        for (char ch : toEscape)
-            message = message.replace(ch + "", "\\" + ch);
+        return sb.append(message, run, message.length()).toString();
+    }
 
-        return message;
+    private static boolean isMd2Special(char ch) {
+        return ch < MD2_SPECIAL.length && MD2_SPECIAL[ch];
     }
 
     /**
@@ -90,6 +117,6 @@ public class Utils {
     }
 
     public static String dateToString(LocalDateTime ts) {
-        return DateTimeFormatter.ofPattern("dd/MM/yyyy HH:mm").format(ts);
+        return dateFormat.format(ts);
     }
 }
@@ -1,33 +1,265 @@
 package org.example.lib;
 
 
+import com.example.lib.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.ResourceBundle;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Localized strings of a single locale:
+ *  1. Vocabularies are shared, a bundle is loaded once per locale into a flat immutable map
+ *  2. Keys which exist in the default (US) bundle or are used by the library, but are missing in the locale,
+ *     are reported when the vocabulary is loaded. At runtime a missing key is returned as is
+ *  3. Templates with placeholders are compiled once, see {@link Template}
+ * Vocabularies of the locales the bot supports could be loaded on startup with {@link #preload(Locale...)}.
+ */
 public final class Vocabulary {
+    private static final Logger log = LoggerFactory.getLogger(Vocabulary.class);
+
+    /**
+     * Must be set before the first vocabulary is created
+     */
     public static String bundleName = "locale";
 
+    private static final Locale DEFAULT_LOCALE = Locale.US;
+    private static final List<String> LIBRARY_KEYS = List.of("core.helpMessage", "core.internalError",
+            "core.noMenuAvailable", "core.notTextError", "core.rottenMenu", "core.unknownCommand");
+
+    private static final ConcurrentHashMap<RegistryKey, Vocabulary> vocabularies = new ConcurrentHashMap<>();
+
     private final Locale locale;
-    private final ResourceBundle rb;
+    private final Map<String, String> strings;
+    private final ConcurrentHashMap<String, String> md2Strings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Template> templates = new ConcurrentHashMap<>();
+    private final Set<String> reportedKeys = ConcurrentHashMap.newKeySet();
+    private Set<String> missingKeys = Set.of();
 
-    private Vocabulary(Locale locale) {
+    private Vocabulary(String bundleName, Locale locale) {
         this.locale = locale;
-        rb = ResourceBundle.getBundle(bundleName, locale);
+
+        final var rb = ResourceBundle.getBundle(bundleName, locale);
+        final var loaded = new HashMap<String, String>();
+        for (var key : rb.keySet())
+            loaded.put(key, rb.getString(key));
+
+        strings = Map.copyOf(loaded);
     }
 
     public Locale getLocale() {
         return locale;
     }
 
+    /**
+     * @return localized string or the key itself if the string is missing
+     */
     public String get(String key) {
-        return rb.getString(key);
+        final var value = strings.get(key);
+        if (value != null)
+            return value;
+
+        if (reportedKeys.add(key))
+            log.warn("Missing key {} in vocabulary of {}", key, locale);
+
+        return key;
+    }
+
+    public boolean contains(String key) {
+        return strings.containsKey(key);
+    }
+
+    /**
+     * @return keys which were reported as missing when the vocabulary was loaded
+     */
+    public Set<String> getMissingKeys() {
+        return missingKeys;
+    }
+
+    /**
+     * @return localized string escaped for MarkdownV2, escaped once per vocabulary
+     */
+    public String getMd2(String key) {
+        return md2Strings.computeIfAbsent(key, k -> Utils.tgMd2Format(get(k)));
+    }
+
+    /**
+     * @return template compiled from the localized string, compiled once per vocabulary
+     */
+    public Template getTemplate(String key) {
+        return templates.computeIfAbsent(key, k -> Template.compile(get(k)));
     }
 
     public static String default_(String key) {
-        return ResourceBundle.getBundle(bundleName, Locale.US).getString(key);
+        return make(DEFAULT_LOCALE).get(key);
     }
 
+    /**
+     * @return shared vocabulary of the locale, the bundle is loaded on the first call
+     */
     public static Vocabulary make(Locale locale) {
-        return new Vocabulary(locale);
+        final var key = new RegistryKey(bundleName, locale);
+        final var vocabulary = vocabularies.get(key);
+        if (vocabulary != null)
+            return vocabulary;
+
+        // Default vocabulary is loaded first, since keys of other locales are checked against it
+        final var defaults = locale.equals(DEFAULT_LOCALE) ? null : make(DEFAULT_LOCALE);
+        return vocabularies.computeIfAbsent(key, k -> load(k, defaults));
+    }
+
+    /**
+     * Loads vocabularies on startup, so bundle loading and missing key reports don't happen on the first message
+     */
+    public static void preload(Locale... locales) {
+        make(DEFAULT_LOCALE);
+        for (var locale : locales)
+            make(locale);
+    }
+
+    private static Vocabulary load(RegistryKey key, Vocabulary defaults) {
+        final var vocabulary = new Vocabulary(key.bundleName, key.locale);
+
+        final var expected = new TreeSet<>(LIBRARY_KEYS);
+        if (defaults != null)
+            expected.addAll(defaults.strings.keySet());
+
+        expected.removeAll(vocabulary.strings.keySet());
+        if (!expected.isEmpty()) {
+            log.warn("Vocabulary of {} misses keys: {}", key.locale, expected);
+            vocabulary.missingKeys = Collections.unmodifiableSet(expected);
+        }
+
+        return vocabulary;
+    }
+
+    private record RegistryKey(String bundleName, Locale locale) { }
+
+    /**
+     * Localized string with placeholders, which is parsed once and then rendered by concatenation.
+     * Placeholders are indexes of arguments with an optional type:
+     *  {0}        - argument as is
+     *  {0,number} - number in a readable form, see {@link Utils#optimizeReadability(Double)}
+     *  {0,md}     - argument escaped for MarkdownV2
+     * Text outside placeholders is returned as is, braces which don't form a placeholder are kept.
+     */
+    public static final class Template {
+        private final String[] texts;
+        private final int[] arguments;
+        private final PlaceholderType[] types;
+        private final int length;
+
+        private Template(String[] texts, int[] arguments, PlaceholderType[] types) {
+            this.texts = texts;
+            this.arguments = arguments;
+            this.types = types;
+
+            int textLength = 0;
+            for (var text : texts)
+                textLength += text.length();
+
+            this.length = textLength;
+        }
+
+        public static Template compile(String pattern) {
+            final var texts = new ArrayList<String>();
+            final var arguments = new ArrayList<Integer>();
+            final var types = new ArrayList<PlaceholderType>();
+
+            final var text = new StringBuilder();
+            int i = 0;
+            while (i < pattern.length()) {
+                final char ch = pattern.charAt(i);
+                final int close = ch == '{' ? pattern.indexOf('}', i) : -1;
+                final var placeholder = close > 0 ? parsePlaceholder(pattern.substring(i + 1, close)) : null;
+                if (placeholder == null) {
+                    text.append(ch);
+                    i++;
+                    continue;
+                }
+
+                texts.add(text.toString());
+                text.setLength(0);
+                arguments.add(placeholder.argument);
+                types.add(placeholder.type);
+                i = close + 1;
+            }
+
+            texts.add(text.toString());
+            return new Template(texts.toArray(new String[0]),
+                    arguments.stream().mapToInt(Integer::intValue).toArray(),
+                    types.toArray(new PlaceholderType[0]));
+        }
+
+        /**
+         * @param args arguments referenced by placeholders, missing ones are rendered as empty strings
+         */
+        public String format(Object... args) {
+            if (arguments.length == 0)
+                return texts[0];
+
+            final var sb = new StringBuilder(length + arguments.length * 8);
+            for (int i = 0; i < arguments.length; i++) {
+                sb.append(texts[i]);
+
+                final int argument = arguments[i];
+                if (argument < args.length && args[argument] != null)
+                    sb.append(types[i].render(args[argument]));
+            }
+
+            return sb.append(texts[arguments.length]).toString();
+        }
+
+        private static Placeholder parsePlaceholder(String body) {
+            final int comma = body.indexOf(',');
+            final var index = comma < 0 ? body : body.substring(0, comma);
+            final var typeName = comma < 0 ? "" : body.substring(comma + 1).trim();
+            if (index.isEmpty() || !index.chars().allMatch(Character::isDigit) || index.length() > 6)
+                return null;
+
+            final PlaceholderType type = switch (typeName) {
+                case "" -> PlaceholderType.PLAIN;
+                case "number" -> PlaceholderType.NUMBER;
+                case "md" -> PlaceholderType.MARKDOWN;
+                default -> null;
+            };
+
+            return type != null ? new Placeholder(Integer.parseInt(index), type) : null;
+        }
+
+        private record Placeholder(int argument, PlaceholderType type) { }
+    }
+
+    private enum PlaceholderType {
+        PLAIN {
+            @Override
+            String render(Object argument) {
+                return String.valueOf(argument);
+            }
+        },
+        NUMBER {
+            @Override
+            String render(Object argument) {
+                return argument instanceof Number number ?
+                        Utils.optimizeReadability(number.doubleValue()) : String.valueOf(argument);
+            }
+        },
+        MARKDOWN {
+            @Override
+            String render(Object argument) {
+                return Utils.tgMd2Format(String.valueOf(argument));
+            }
+        };
+
+        abstract String render(Object argument);
     }
 }
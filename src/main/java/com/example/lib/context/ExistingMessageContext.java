@@ -11,6 +11,7 @@ public class ExistingMessageContext extends InteractiveMessageContext {
     public static ExistingMessageContext of(InteractiveMessageContext oldContext, Integer messageId) {
         final var context = new ExistingMessageContext(oldContext.chat, messageId);
         context.putAll(oldContext);
+        context.copyShownMenu(oldContext);
         return context;
     }
 }
@@ -1,31 +1,85 @@
 package com.example.lib.context;
 
+import com.example.lib.menu.CallbackCodec;
 import com.example.lib.menu.MenuInfoSupplier;
+import com.example.lib.menu.RenderedMenu;
 import com.example.lib.TgChat;
 
 import java.nio.ByteBuffer;
 import java.util.HashMap;
 
+import static com.example.lib.menu.CallbackReference.TG_CALLBACK_DATA_SIZE_LIMIT;
+
 public class InteractiveMessageContext extends HashMap<String, Object> {
+    private static final ByteBuffer EMPTY_PAYLOAD = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
     public final TgChat chat;
 
     public MenuInfoSupplier latestMenuSupplier;
 
+    // Payload of the latest pressed button, buffer is reused by all callbacks of this message
     private byte[] payload;
+    private int payloadLength;
+
+    // Menu which is shown in the message at the moment, so identical edits could be skipped
+    private RenderedMenu shownMenu;
 
     public InteractiveMessageContext(TgChat chat) {
         this.chat = chat;
     }
 
+    public boolean isTextShown(RenderedMenu menu) {
+        return menu.hasSameText(shownMenu);
+    }
 
+    public boolean isMarkupShown(RenderedMenu menu) {
+        return menu.hasSameMarkup(shownMenu);
+    }
+
+    /**
+     * Remembers the menu which is shown in the message
+     * @param menu nullable, null if it's unknown what the message shows, e.g. it's edited without a menu
+     */
+    public void setShownMenu(RenderedMenu menu) {
+        shownMenu = menu;
+    }
+
+    protected void copyShownMenu(InteractiveMessageContext other) {
+        shownMenu = other.shownMenu;
+    }
+
+    /**
+     * Read-only view of the latest payload with its own position, so the payload isn't copied. The view shares
+     * the buffer of the context, so its content is replaced by the payload of the next pressed button
+     * of this message.
+     */
     public ByteBuffer getPayload() {
         if (payload == null)
-            return ByteBuffer.allocate(0);
+            return EMPTY_PAYLOAD;
 
-        return ByteBuffer.wrap(payload);
+        return ByteBuffer.wrap(payload, 0, payloadLength).slice().asReadOnlyBuffer();
     }
 
     public void setPayload(byte[] payload) {
-        this.payload = payload;
+        setPayload(payload, 0, payload.length);
+    }
+
+    public void setPayload(byte[] source, int offset, int length) {
+        System.arraycopy(source, offset, payloadBuffer(length), 0, length);
+        payloadLength = length;
+    }
+
+    /**
+     * Decodes payload straight into the buffer of this context, so no intermediate arrays are allocated.
+     */
+    public void decodePayload(CallbackCodec codec, CharSequence data, int from, int to) {
+        payloadLength = codec.decode(data, from, to, payloadBuffer(TG_CALLBACK_DATA_SIZE_LIMIT));
+    }
+
+    private byte[] payloadBuffer(int capacity) {
+        if (payload == null || payload.length < capacity)
+            payload = new byte[Math.max(capacity, TG_CALLBACK_DATA_SIZE_LIMIT)];
+
+        return payload;
     }
 }
@@ -0,0 +1,327 @@
+package com.example.lib.internals;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Two-tier cache of downloaded files keyed by telegram {@code file_unique_id}, which is the same for a file
+ * no matter which chat it came from.
+ *  1. Heap tier keeps recently used files in memory until their total size exceeds heap budget
+ *  2. Optional disk tier receives files evicted from heap and serves them as memory-mapped buffers
+ * Both tiers evict the least recently used files first. A file which is being written to disk stays available
+ * from memory until the write is finished.
+ */
+public class AttachmentCache {
+    private static final Logger log = LoggerFactory.getLogger(AttachmentCache.class);
+
+    private final long heapBudget;
+    private final Path directory;
+    private final long diskBudget;
+
+    private final LinkedHashMap<String, byte[]> heap = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<String, Long> disk = new LinkedHashMap<>(16, 0.75f, true);
+    // Evicted from heap, but not written to disk yet
+    private final HashMap<String, byte[]> spilling = new HashMap<>();
+    private final ConcurrentHashMap<String, CompletableFuture<ByteBuffer>> loading = new ConcurrentHashMap<>();
+    private long heapSize;
+    private long diskSize;
+
+    public AttachmentCache(long heapBudgetBytes) {
+        this(heapBudgetBytes, null, 0);
+    }
+
+    /**
+     * @param directory nullable, directory for the disk tier. Files which are already there are reused.
+     */
+    public AttachmentCache(long heapBudgetBytes, Path directory, long diskBudgetBytes) {
+        this.heapBudget = heapBudgetBytes;
+        this.directory = directory;
+        this.diskBudget = diskBudgetBytes;
+
+        if (directory != null)
+            indexDirectory();
+    }
+
+    /**
+     * @return read-only content of the file or null if it isn't cached
+     */
+    public ByteBuffer get(String fileUniqueId) {
+        final Long size;
+        synchronized (this) {
+            final var data = heap.get(fileUniqueId);
+            if (data != null)
+                return ByteBuffer.wrap(data).asReadOnlyBuffer();
+
+            final var pending = spilling.get(fileUniqueId);
+            if (pending != null)
+                return ByteBuffer.wrap(pending).asReadOnlyBuffer();
+
+            size = disk.get(fileUniqueId);
+        }
+
+        if (size == null)
+            return null;
+
+        try (var channel = FileChannel.open(fileOf(fileUniqueId), StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            log.warn("Unable to map cached file {}", fileUniqueId, e);
+            synchronized (this) {
+                if (disk.remove(fileUniqueId) != null)
+                    diskSize -= size;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns cached content or loads it with the loader. Concurrent requests of the same file share one load.
+     */
+    public CompletableFuture<ByteBuffer> get(String fileUniqueId, Supplier<CompletableFuture<byte[]>> loader) {
+        final var cached = get(fileUniqueId);
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+
+        final var load = new CompletableFuture<ByteBuffer>();
+        final var existing = loading.putIfAbsent(fileUniqueId, load);
+        if (existing != null)
+            return existing;
+
+        // The file could be loaded by someone else between the lookup and registration of this load
+        final var loaded = get(fileUniqueId);
+        if (loaded != null) {
+            loading.remove(fileUniqueId, load);
+            load.complete(loaded);
+            return load;
+        }
+
+        CompletableFuture<byte[]> source;
+        try {
+            source = loader.get();
+        } catch (Throwable t) {
+            source = CompletableFuture.failedFuture(t);
+        }
+
+        source.whenComplete((data, e) -> {
+            if (e == null)
+                put(fileUniqueId, data);
+
+            loading.remove(fileUniqueId, load);
+            if (e != null) {
+                load.completeExceptionally(e);
+            } else {
+                load.complete(ByteBuffer.wrap(data).asReadOnlyBuffer());
+            }
+        });
+
+        return load;
+    }
+
+    public void put(String fileUniqueId, byte[] data) {
+        final var spilled = new ArrayList<Map.Entry<String, byte[]>>();
+        synchronized (this) {
+            if (heap.containsKey(fileUniqueId) || spilling.containsKey(fileUniqueId) ||
+                    disk.containsKey(fileUniqueId)) {
+
+                return;
+            }
+
+            if (data.length > heapBudget) {
+                spilled.add(Map.entry(fileUniqueId, data));
+            } else {
+                heap.put(fileUniqueId, data);
+                heapSize += data.length;
+
+                final var it = heap.entrySet().iterator();
+                while (heapSize > heapBudget && it.hasNext()) {
+                    final var eldest = it.next();
+                    it.remove();
+                    heapSize -= eldest.getValue().length;
+                    spilled.add(eldest);
+                }
+            }
+
+            if (directory != null) {
+                for (var entry : spilled)
+                    spilling.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        if (directory != null) {
+            for (var entry : spilled)
+                spill(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public synchronized long getHeapSize() {
+        return heapSize;
+    }
+
+    public synchronized long getDiskSize() {
+        return diskSize;
+    }
+
+    /**
+     * Wraps a buffer returned by the cache into a stream without copying it.
+     */
+    public static InputStream asStream(ByteBuffer buffer) {
+        final var source = buffer.duplicate();
+        return new InputStream() {
+            @Override
+            public int read() {
+                return source.hasRemaining() ? source.get() & 0xFF : -1;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                if (len == 0)
+                    return 0;
+
+                if (!source.hasRemaining())
+                    return -1;
+
+                final int n = Math.min(len, source.remaining());
+                source.get(b, off, n);
+                return n;
+            }
+
+            @Override
+            public int available() {
+                return source.remaining();
+            }
+        };
+    }
+
+    private void spill(String fileUniqueId, byte[] data) {
+        if (data.length > diskBudget) {
+            synchronized (this) {
+                spilling.remove(fileUniqueId);
+            }
+            return;
+        }
+
+        final var file = fileOf(fileUniqueId);
+        try {
+            final var tmp = Files.createTempFile(directory, "spill", ".tmp");
+            Files.write(tmp, data);
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to spill file {} to disk", fileUniqueId, e);
+            synchronized (this) {
+                spilling.remove(fileUniqueId);
+            }
+            return;
+        }
+
+        final List<String> evicted;
+        synchronized (this) {
+            // The file is visible on disk at the moment it disappears from memory
+            spilling.remove(fileUniqueId);
+            if (disk.put(fileUniqueId, (long) data.length) == null)
+                diskSize += data.length;
+
+            evicted = trimDisk();
+        }
+
+        delete(evicted);
+    }
+
+    /*
+     * Should be called under the lock, returns keys of the evicted files which should be deleted
+     */
+    private List<String> trimDisk() {
+        final var evicted = new ArrayList<String>();
+        final var it = disk.entrySet().iterator();
+        while (diskSize > diskBudget && it.hasNext()) {
+            final var eldest = it.next();
+            it.remove();
+            diskSize -= eldest.getValue();
+            evicted.add(eldest.getKey());
+        }
+
+        return evicted;
+    }
+
+    private void delete(List<String> evicted) {
+        for (var key : evicted) {
+            try {
+                Files.deleteIfExists(fileOf(key));
+            } catch (IOException e) {
+                log.warn("Unable to delete cached file {}", key, e);
+            }
+        }
+    }
+
+    /*
+     * Files are indexed from the least recently modified one, so they are evicted in that order. Files which
+     * don't fit the disk budget, e.g. when it was lowered since the last run, are deleted right away.
+     */
+    private void indexDirectory() {
+        final var files = new ArrayList<Map.Entry<Path, BasicFileAttributes>>();
+        try {
+            Files.createDirectories(directory);
+            try (var list = Files.list(directory)) {
+                list.forEach(file -> {
+                    try {
+                        final var attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                        if (!attributes.isRegularFile())
+                            return;
+
+                        if (file.getFileName().toString().endsWith(".tmp")) {
+                            Files.deleteIfExists(file);
+                        } else {
+                            files.add(Map.entry(file, attributes));
+                        }
+                    } catch (IOException e) {
+                        log.warn("Unable to index cached file {}", file, e);
+                    }
+                });
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to initialize attachment cache directory " + directory, e);
+        }
+
+        files.sort(Comparator.comparing(entry -> entry.getValue().lastModifiedTime()));
+        final List<String> evicted;
+        synchronized (this) {
+            for (var entry : files) {
+                final long size = entry.getValue().size();
+                disk.put(entry.getKey().getFileName().toString(), size);
+                diskSize += size;
+            }
+
+            evicted = trimDisk();
+        }
+
+        delete(evicted);
+    }
+
+    /*
+     * file_unique_id consists of base64url characters, so it's a safe file name
+     */
+    private Path fileOf(String fileUniqueId) {
+        if (fileUniqueId.isEmpty() || !fileUniqueId.chars().allMatch(c -> Character.isLetterOrDigit(c) || c == '-' || c == '_'))
+            throw new IllegalArgumentException("Unexpected file unique id: " + fileUniqueId);
+
+        return directory.resolve(fileUniqueId);
+    }
+}
@@ -19,7 +19,10 @@ public abstract class CallbackHandler implements Consumer<InteractiveMessageCont
     }
 
     /**
-     * sending a new menu or editing already existing one
+     * sending a new menu or editing already existing one.
+     * Handlers run in the chat's dispatcher lane, so it waits until the menu is shown and its context is saved:
+     * next updates of the chat see the new menu and the context isn't saved concurrently with the edit.
+     * Menu failures are reported to the chat, a failure to report them is thrown to the update error handler.
      */
     protected static void respondWithMenu(InteractiveMessageContext context, MenuInfoSupplier menuInfoSupplier) {
         if (context instanceof ExistingMessageContext ctx) {
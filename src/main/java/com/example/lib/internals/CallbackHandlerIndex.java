@@ -0,0 +1,109 @@
+package com.example.lib.internals;
+
+/**
+ * Read-optimized index of callback handlers by tag:
+ *  1. Handler is looked up by a region of callback data, so the tag doesn't have to be extracted into a string
+ *  2. Table is an open addressing array which is replaced as a whole on registration, so lookups take no locks
+ * Handlers are registered rarely (usually on startup), so the table is rebuilt on every registration.
+ */
+public class CallbackHandlerIndex<T> {
+    private volatile Table table = new Table(new String[0], new Object[0], 0);
+
+    /**
+     * @return false if a handler with this tag is already registered
+     */
+    public synchronized boolean register(String tag, T handler) {
+        final var current = table;
+        if (current.find(tag, 0, tag.length()) != null)
+            return false;
+
+        final int size = current.size + 1;
+        final int capacity = Integer.highestOneBit(Math.max(size * 2, 8) - 1) << 1;
+        final var tags = new String[capacity];
+        final var handlers = new Object[capacity];
+        for (int i = 0; i < current.tags.length; i++) {
+            if (current.tags[i] != null)
+                Table.insert(tags, handlers, current.tags[i], current.handlers[i]);
+        }
+
+        Table.insert(tags, handlers, tag, handler);
+        table = new Table(tags, handlers, size);
+        return true;
+    }
+
+    /**
+     * @return handler registered with a tag equal to {@code data[from, to)} or null
+     */
+    @SuppressWarnings("unchecked")
+    public T get(CharSequence data, int from, int to) {
+        return (T) table.find(data, from, to);
+    }
+
+    public boolean contains(String tag) {
+        return get(tag, 0, tag.length()) != null;
+    }
+
+    public int size() {
+        return table.size;
+    }
+
+    private static final class Table {
+        private final String[] tags;
+        private final Object[] handlers;
+        private final int size;
+
+        private Table(String[] tags, Object[] handlers, int size) {
+            this.tags = tags;
+            this.handlers = handlers;
+            this.size = size;
+        }
+
+        private Object find(CharSequence data, int from, int to) {
+            if (tags.length == 0)
+                return null;
+
+            final int mask = tags.length - 1;
+            for (int i = hash(data, from, to) & mask; ; i = (i + 1) & mask) {
+                final var tag = tags[i];
+                if (tag == null)
+                    return null;
+
+                if (regionEquals(tag, data, from, to))
+                    return handlers[i];
+            }
+        }
+
+        private static void insert(String[] tags, Object[] handlers, String tag, Object handler) {
+            final int mask = tags.length - 1;
+            int i = hash(tag, 0, tag.length()) & mask;
+            while (tags[i] != null)
+                i = (i + 1) & mask;
+
+            tags[i] = tag;
+            handlers[i] = handler;
+        }
+
+        /*
+         * Same as String.hashCode, but for a region of any char sequence
+         */
+        private static int hash(CharSequence data, int from, int to) {
+            int h = 0;
+            for (int i = from; i < to; i++)
+                h = 31 * h + data.charAt(i);
+
+            return h ^ (h >>> 16);
+        }
+
+        private static boolean regionEquals(String tag, CharSequence data, int from, int to) {
+            if (tag.length() != to - from)
+                return false;
+
+            for (int i = 0; i < tag.length(); i++) {
+                if (tag.charAt(i) != data.charAt(from + i))
+                    return false;
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,278 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgChat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Keeps chats of the bot:
+ *  1. Number of chats is limited by capacity, if it's exceeded the least recently used chats are evicted
+ *  2. Chats which weren't used longer than idle timeout are evicted by {@link #evictIdle()}
+ *  3. Chats which are in use at the moment (see {@link #setInUse}) are never evicted
+ *  4. Chats could be looked up by id of the user who started them, private chat of the user is preferred
+ * Eviction hook is invoked for every evicted chat, so its state could be persisted.
+ * Context watermarks of evicted chats (see {@link MessageContextCache}) are kept by the registry and restored when
+ * the chat is created again, so callbacks of menus evicted with the chat are still detected. Watermarks of
+ * the last {@value #MAX_EVICTED_WATERMARKS} evicted chats are kept, 4 bytes of payload each.
+ */
+public class ChatRegistry {
+    private static final Logger log = LoggerFactory.getLogger(ChatRegistry.class);
+    private static final int MAX_EVICTED_WATERMARKS = 250_000;
+
+    private final ConcurrentHashMap<Long, Entry> chats = new ConcurrentHashMap<>();
+    // Every chat of a user, private chat goes first
+    private final ConcurrentHashMap<Long, List<TgChat>> chatsByUser = new ConcurrentHashMap<>();
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final LinkedHashMap<Long, Integer> evictedWatermarks = new LinkedHashMap<>();
+
+    private volatile int capacity = Integer.MAX_VALUE;
+    private volatile Duration idleTimeout;
+    private volatile Consumer<TgChat> onEvicted;
+    private volatile Predicate<Long> inUse = __ -> false;
+
+    public TgChat get(Long chatId) {
+        final var entry = chats.get(chatId);
+        if (entry == null)
+            return null;
+
+        entry.lastAccess = System.nanoTime();
+        return entry.chat;
+    }
+
+    public TgChat computeIfAbsent(Long chatId, Function<Long, TgChat> factory) {
+        final var existing = get(chatId);
+        if (existing != null)
+            return existing;
+
+        final boolean[] created = {false};
+        final var entry = chats.computeIfAbsent(chatId, id -> {
+            created[0] = true;
+            return new Entry(factory.apply(id));
+        });
+
+        if (created[0]) {
+            restoreWatermark(entry.chat);
+            index(entry.chat);
+            if (chats.size() > capacity)
+                evictOverflow();
+        }
+
+        return entry.chat;
+    }
+
+    /**
+     * O(1) lookup of a chat by user id. If the user has a private chat with the bot, it's returned.
+     */
+    public Optional<TgChat> getByUser(Long userId) {
+        final var userChats = chatsByUser.get(userId);
+        if (userChats == null)
+            return Optional.empty();
+
+        final var chat = userChats.get(0);
+        get(chat.chatId);
+        return Optional.of(chat);
+    }
+
+    public int size() {
+        return chats.size();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
+        this.capacity = capacity;
+    }
+
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * @param idleTimeout nullable, null disables idle eviction
+     */
+    public void setIdleTimeout(Duration idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public void setOnEvicted(Consumer<TgChat> onEvicted) {
+        this.onEvicted = onEvicted;
+    }
+
+    /**
+     * @param inUse tells by chat id if the chat has updates which are being handled or queued,
+     *              such chats are skipped by eviction
+     */
+    public void setInUse(Predicate<Long> inUse) {
+        this.inUse = inUse;
+    }
+
+    /**
+     * Evicts all chats which weren't used longer than idle timeout.
+     */
+    public void evictIdle() {
+        final var timeout = idleTimeout;
+        if (timeout == null)
+            return;
+
+        final long now = System.nanoTime();
+        final long timeoutNanos = timeout.toNanos();
+        final var busy = inUse;
+        for (var entry : chats.values()) {
+            if (now - entry.lastAccess > timeoutNanos && !busy.test(entry.chat.chatId))
+                evict(entry);
+        }
+    }
+
+    /**
+     * Drops expired message contexts of all chats, see {@link MessageContextCache#evictExpired()}.
+     */
+    public void evictExpiredContexts() {
+        for (var entry : chats.values()) {
+            try {
+                entry.chat.evictExpiredContexts();
+            } catch (Throwable t) {
+                log.error("Unable to evict expired contexts of chat {}", entry.chat.chatId, t);
+            }
+        }
+    }
+
+    /*
+     * Evicts chats down to 90% of capacity at once, so sorting cost is amortized over inserted chats
+     */
+    private void evictOverflow() {
+        if (!evictionLock.tryLock())
+            return;
+
+        try {
+            final int target = capacity - capacity / 10;
+            final int excess = chats.size() - target;
+            if (excess <= 0)
+                return;
+
+            // Access time is snapshotted, so concurrent accesses don't break sorting
+            final var busy = inUse;
+            chats.values().stream()
+                    .map(e -> Map.entry(e, e.lastAccess))
+                    .sorted(Map.Entry.comparingByValue())
+                    .filter(e -> !busy.test(e.getKey().chat.chatId))
+                    .limit(excess)
+                    .toList()
+                    .forEach(e -> evict(e.getKey()));
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    private void evict(Entry entry) {
+        final var chat = entry.chat;
+        if (!chats.remove(chat.chatId, entry))
+            return;
+
+        // An update could be queued after the chat was checked, then it keeps the chat unless it's created again
+        if (inUse.test(chat.chatId) && chats.putIfAbsent(chat.chatId, entry) == null)
+            return;
+
+        unindex(chat);
+        final var hook = onEvicted;
+        if (hook != null) {
+            try {
+                hook.accept(chat);
+            } catch (Throwable t) {
+                log.error("Chat eviction hook failed for chat {}", chat.chatId, t);
+            }
+        }
+
+        rememberWatermark(chat);
+    }
+
+    /*
+     * Called after the eviction hook, if there is one, which drops contexts of the chat and so raises its watermark.
+     * The chat could be created again while the hook runs, then the watermark is passed to the new one,
+     * otherwise it's restored by the new chat right after it's registered
+     */
+    private void rememberWatermark(TgChat chat) {
+        final int watermark = chat.getEvictedContextWatermark();
+        if (watermark == Integer.MIN_VALUE)
+            return;
+
+        synchronized (evictedWatermarks) {
+            final var current = chats.get(chat.chatId);
+            if (current != null) {
+                current.chat.restoreEvictedContextWatermark(watermark);
+                return;
+            }
+
+            evictedWatermarks.put(chat.chatId, watermark);
+            if (evictedWatermarks.size() > MAX_EVICTED_WATERMARKS)
+                evictedWatermarks.remove(evictedWatermarks.keySet().iterator().next());
+        }
+    }
+
+    private void restoreWatermark(TgChat chat) {
+        final Integer watermark;
+        synchronized (evictedWatermarks) {
+            watermark = evictedWatermarks.remove(chat.chatId);
+        }
+
+        if (watermark != null)
+            chat.restoreEvictedContextWatermark(watermark);
+    }
+
+    private void index(TgChat chat) {
+        chatsByUser.compute(chat.clientId, (__, userChats) -> {
+            final var updated = new ArrayList<TgChat>(userChats != null ? userChats.size() + 1 : 1);
+            if (userChats != null) {
+                for (var c : userChats) {
+                    if (!c.chatId.equals(chat.chatId))
+                        updated.add(c);
+                }
+            }
+
+            if (chat.chatId.equals(chat.clientId)) {
+                updated.add(0, chat);
+            } else {
+                updated.add(chat);
+            }
+
+            return List.copyOf(updated);
+        });
+    }
+
+    private void unindex(TgChat chat) {
+        chatsByUser.computeIfPresent(chat.clientId, (__, userChats) -> {
+            if (!userChats.contains(chat))
+                return userChats;
+
+            final var updated = new ArrayList<>(userChats);
+            updated.remove(chat);
+            return updated.isEmpty() ? null : List.copyOf(updated);
+        });
+    }
+
+    private static final class Entry {
+        private final TgChat chat;
+        private volatile long lastAccess;
+
+        private Entry(TgChat chat) {
+            this.chat = chat;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+}
@@ -1,27 +1,254 @@
 package com.example.lib.internals;
 
-import org.apache.commons.lang3.tuple.Pair;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-import java.util.HashSet;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.time.Duration;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Keeps server side state of chat messages (e.g. checked checkboxes) for a limited time:
+ *  1. Items are kept by message id in striped int-keyed tables, without boxing of ids
+ *  2. TTL is the same for every item, so items expire in the order they were created. They're queued in that
+ *     order, and cleanup takes only expired items from the head of the queue
+ *  3. All storages are cleaned up by a single background task, which holds them weakly in a registry,
+ *     so an abandoned storage is collected with its items and dropped from the registry
+ *  4. Tables shrink when most of their items expire, so a burst of messages doesn't keep memory forever
+ * Checkbox sets could be changed from several threads at once.
+ */
 public class ChatServerSideStorage {
+    public static final Duration DEFAULT_TTL = Duration.ofDays(3);
 
-    private final ConcurrentHashMap<Integer, Pair<Long, Set<String>>> checkboxesByMessage = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(ChatServerSideStorage.class);
 
-    public Set<String> getCheckboxes(Integer msgId) {
-        return checkboxesByMessage.computeIfAbsent(msgId, e ->
-                Pair.of(System.currentTimeMillis(), new HashSet<>())).getRight();
+    private static final int STRIPES = 16;
+    private static final long SWEEP_PERIOD_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    private static final Set<WeakReference<ChatServerSideStorage>> storages = ConcurrentHashMap.newKeySet();
+    private static final ReferenceQueue<ChatServerSideStorage> collected = new ReferenceQueue<>();
+    private static final ScheduledExecutorService sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+        final var thread = new Thread(r, "tg-storage-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        sweeper.scheduleWithFixedDelay(ChatServerSideStorage::sweep,
+                SWEEP_PERIOD_MILLIS, SWEEP_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private final long ttlNanos;
+    private final IntTable[] tables = new IntTable[STRIPES];
+    private final ConcurrentLinkedQueue<Item> expiryQueue = new ConcurrentLinkedQueue<>();
+
+    public ChatServerSideStorage() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * @param ttl items created earlier than ttl ago are removed
+     */
+    public ChatServerSideStorage(Duration ttl) {
+        if (ttl.isNegative() || ttl.isZero())
+            throw new IllegalArgumentException("TTL must be positive");
+
+        this.ttlNanos = ttl.toNanos();
+        for (int i = 0; i < tables.length; i++)
+            tables[i] = new IntTable();
+
+        storages.add(new WeakReference<>(this, collected));
+    }
+
+    public Set<String> getCheckboxes(int msgId) {
+        final var table = tableOf(msgId);
+        Item created;
+        synchronized (table) {
+            final var existing = table.get(msgId);
+            if (existing != null)
+                return existing.checkboxes;
+
+            created = new Item(msgId, System.nanoTime());
+            table.put(msgId, created);
+        }
+
+        expiryQueue.add(created);
+        return created.checkboxes;
+    }
+
+    public int size() {
+        int size = 0;
+        for (var table : tables) {
+            synchronized (table) {
+                size += table.size();
+            }
+        }
+
+        return size;
     }
 
     /**
-     * Cleans up all old objects if they could be considered expired.
-     * This method should be invoked as often as possible
+     * Removes expired items. Cost depends on amount of expired items only, so it could be invoked often,
+     * though the background sweeper already does it.
      */
     public void cleanUp() {
-        final Long now = System.currentTimeMillis();
-        checkboxesByMessage.entrySet().stream().filter(e -> now - e.getValue().getLeft() > 3*24*60*60*1000)
-                .forEach(e -> checkboxesByMessage.remove(e.getKey()));
+        synchronized (expiryQueue) {
+            final long now = System.nanoTime();
+            while (true) {
+                final var head = expiryQueue.peek();
+                if (head == null || now - head.createdAt <= ttlNanos)
+                    return;
+
+                expiryQueue.poll();
+                final var table = tableOf(head.msgId);
+                synchronized (table) {
+                    table.remove(head.msgId, head);
+                }
+            }
+        }
+    }
+
+    private IntTable tableOf(int msgId) {
+        return tables[IntTable.mix(msgId) >>> 28];
+    }
+
+    /*
+     * Drops references to collected storages and cleans up the rest. Cleanup of a storage without expired
+     * items is a single peek, so every storage is visited on every run. Failures are logged, since an exception
+     * would cancel the task for all storages
+     */
+    private static void sweep() {
+        for (var reference = collected.poll(); reference != null; reference = collected.poll())
+            storages.remove(reference);
+
+        for (var reference : storages) {
+            final var storage = reference.get();
+            if (storage == null)
+                continue;
+
+            try {
+                storage.cleanUp();
+            } catch (Throwable t) {
+                log.error("Failed to clean up chat server side storage", t);
+            }
+        }
+    }
+
+    static final class Item {
+        final int msgId;
+        final long createdAt;
+        final Set<String> checkboxes = ConcurrentHashMap.newKeySet();
+
+        Item(int msgId, long createdAt) {
+            this.msgId = msgId;
+            this.createdAt = createdAt;
+        }
+    }
+
+    /*
+     * Open addressing table with linear probing, guarded by the monitor of the table. It grows when it's 3/4 full
+     * and shrinks when it's less than 1/8 full, so it's 1/4 full after shrinking and doesn't flap
+     */
+    static final class IntTable {
+        private static final int MIN_CAPACITY = 16;
+
+        private int[] keys = new int[MIN_CAPACITY];
+        private Item[] values = new Item[MIN_CAPACITY];
+        private int size;
+
+        /*
+         * Murmur3 finalizer, both low bits (slot) and high bits (stripe) depend on every bit of the key,
+         * so ids differing only in high bits don't pile up in one slot
+         */
+        static int mix(int key) {
+            int h = key;
+            h ^= h >>> 16;
+            h *= 0x85EBCA6B;
+            h ^= h >>> 13;
+            h *= 0xC2B2AE35;
+            return h ^ (h >>> 16);
+        }
+
+        Item get(int key) {
+            final int mask = keys.length - 1;
+            for (int i = mix(key) & mask; values[i] != null; i = (i + 1) & mask) {
+                if (keys[i] == key)
+                    return values[i];
+            }
+
+            return null;
+        }
+
+        void put(int key, Item value) {
+            if ((size + 1) * 4 > keys.length * 3)
+                resize(keys.length * 2);
+
+            final int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (values[i] != null && keys[i] != key)
+                i = (i + 1) & mask;
+
+            if (values[i] == null)
+                size++;
+
+            keys[i] = key;
+            values[i] = value;
+        }
+
+        /*
+         * Removes the key only if it still maps to the value. Following entries are shifted back,
+         * so lookups don't need tombstones
+         */
+        void remove(int key, Item value) {
+            final int mask = keys.length - 1;
+            int i = mix(key) & mask;
+            while (values[i] != null && keys[i] != key)
+                i = (i + 1) & mask;
+
+            if (values[i] != value)
+                return;
+
+            size--;
+            int gap = i;
+            for (int j = (gap + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+                final int home = mix(keys[j]) & mask;
+                if (((j - home) & mask) >= ((j - gap) & mask)) {
+                    keys[gap] = keys[j];
+                    values[gap] = values[j];
+                    gap = j;
+                }
+            }
+
+            values[gap] = null;
+
+            if (keys.length > MIN_CAPACITY && size * 8 < keys.length)
+                resize(keys.length / 2);
+        }
+
+        int size() {
+            return size;
+        }
+
+        int capacity() {
+            return keys.length;
+        }
+
+        private void resize(int capacity) {
+            final var oldKeys = keys;
+            final var oldValues = values;
+            keys = new int[capacity];
+            values = new Item[capacity];
+            size = 0;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldValues[i] != null)
+                    put(oldKeys[i], oldValues[i]);
+            }
+        }
     }
 }
@@ -0,0 +1,121 @@
+package com.example.lib.internals;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs tasks on a shared executor while keeping them strictly ordered per key (chat id).
+ * Tasks of different keys are executed in parallel, tasks of the same key - one by one in submission order.
+ * Amount of queued tasks is limited by queue depth: when it's reached, {@link #dispatch} blocks the caller.
+ */
+public class ChatUpdateDispatcher {
+    private static final Logger log = LoggerFactory.getLogger(ChatUpdateDispatcher.class);
+
+    private final Executor executor;
+    private final Semaphore capacity;
+    private final int queueDepth;
+    private final ConcurrentHashMap<Long, Lane> lanes = new ConcurrentHashMap<>();
+
+    public ChatUpdateDispatcher(Executor executor, int queueDepth) {
+        if (queueDepth <= 0)
+            throw new IllegalArgumentException("Queue depth must be positive");
+
+        this.executor = executor;
+        this.queueDepth = queueDepth;
+        this.capacity = new Semaphore(queueDepth);
+    }
+
+    /**
+     * Queues the task after all previously dispatched tasks of the same key.
+     * Blocks while the dispatcher is full.
+     */
+    public void dispatch(Long key, Runnable task) throws InterruptedException {
+        capacity.acquire();
+
+        while (true) {
+            final var lane = lanes.computeIfAbsent(key, Lane::new);
+            final boolean schedule;
+            synchronized (lane) {
+                if (lane.retired)
+                    continue;
+
+                lane.tasks.add(task);
+                schedule = !lane.running;
+                lane.running = true;
+            }
+
+            if (schedule) {
+                try {
+                    executor.execute(lane);
+                } catch (RuntimeException e) {
+                    synchronized (lane) {
+                        lane.tasks.remove(task);
+                        lane.running = false;
+                    }
+                    capacity.release();
+                    throw e;
+                }
+            }
+
+            return;
+        }
+    }
+
+    /**
+     * @return amount of tasks which are queued or being executed at the moment
+     */
+    public int pending() {
+        return queueDepth - capacity.availablePermits();
+    }
+
+    /**
+     * @return true if tasks of the key are queued or being executed at the moment
+     */
+    public boolean isPending(Long key) {
+        return lanes.containsKey(key);
+    }
+
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    private final class Lane implements Runnable {
+        private final Long key;
+        private final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+        private boolean running;
+        private boolean retired;
+
+        private Lane(Long key) {
+            this.key = key;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                final Runnable task;
+                synchronized (this) {
+                    task = tasks.poll();
+                    if (task == null) {
+                        running = false;
+                        retired = true;
+                        lanes.remove(key, this);
+                        return;
+                    }
+                }
+
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.error("Unhandled error in a task of chat {}", key, t);
+                } finally {
+                    capacity.release();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.model.MessageEntity;
+
+/**
+ * Turns text with telegram entities into HTML in a single pass:
+ *  1. Entities are sorted once by start, entities starting at the same position are opened from the longest one
+ *  2. At every position entities ending there are closed first (from inner to outer), then new ones are opened
+ *  3. Text is escaped while it's copied, entities which aren't supported produce no tags
+ * Entities of zero length are closed only at the end of the text.
+ */
+public final class EntityHtmlFormatter {
+    private static final int NO_POSITION = Integer.MAX_VALUE;
+
+    private EntityHtmlFormatter() { }
+
+    public static String format(String text, MessageEntity[] entities) {
+        if (entities == null || entities.length == 0) {
+            final var sb = new StringBuilder(text.length() + 16);
+            appendEscaped(sb, text, 0, text.length());
+            return sb.toString();
+        }
+
+        final int n = entities.length;
+        final int textLength = text.length();
+        final int[] starts = new int[n];
+        final int[] ends = new int[n];
+        final int[] order = new int[n];
+        for (int i = 0; i < n; i++) {
+            final var e = entities[i];
+            starts[i] = Math.max(0, Math.min(e.offset(), textLength));
+            ends[i] = Math.max(starts[i], Math.min(e.offset() + e.length(), textLength));
+            order[i] = i;
+        }
+
+        sortByOpeningOrder(order, starts, entities);
+
+        final var sb = new StringBuilder(textLength + n * 16);
+        final int[] stack = new int[n];
+        int depth = 0;
+        int next = 0;
+        int cursor = 0;
+
+        while (true) {
+            int pos = next < n ? starts[order[next]] : NO_POSITION;
+            for (int i = 0; i < depth; i++) {
+                final int e = stack[i];
+                if (starts[e] < ends[e] && ends[e] < pos)
+                    pos = ends[e];
+            }
+
+            if (pos == NO_POSITION)
+                break;
+
+            appendEscaped(sb, text, cursor, pos);
+            cursor = Math.max(cursor, pos);
+
+            // Closing entities which end here, from the top of the stack
+            for (int i = depth - 1; i >= 0; i--) {
+                final int e = stack[i];
+                if (starts[e] < ends[e] && ends[e] == pos) {
+                    appendCloseTag(sb, entities[e]);
+                    System.arraycopy(stack, i + 1, stack, i, depth - i - 1);
+                    depth--;
+                }
+            }
+
+            while (next < n && starts[order[next]] == pos) {
+                final int e = order[next++];
+                stack[depth++] = e;
+                appendOpenTag(sb, entities[e]);
+            }
+        }
+
+        appendEscaped(sb, text, cursor, textLength);
+        for (int i = depth - 1; i >= 0; i--)
+            appendCloseTag(sb, entities[stack[i]]);
+
+        return sb.toString();
+    }
+
+    /*
+     * Insertion sort by start ascending, then by length descending, otherwise entities keep their order.
+     * Messages have a few entities, so it's cheaper than a general purpose sort
+     */
+    private static void sortByOpeningOrder(int[] order, int[] starts, MessageEntity[] entities) {
+        for (int i = 1; i < order.length; i++) {
+            final int current = order[i];
+            int j = i - 1;
+            while (j >= 0 && opensAfter(order[j], current, starts, entities)) {
+                order[j + 1] = order[j];
+                j--;
+            }
+
+            order[j + 1] = current;
+        }
+    }
+
+    private static boolean opensAfter(int a, int b, int[] starts, MessageEntity[] entities) {
+        if (starts[a] != starts[b])
+            return starts[a] > starts[b];
+
+        return entities[a].length() < entities[b].length();
+    }
+
+    private static void appendOpenTag(StringBuilder sb, MessageEntity e) {
+        switch (e.type()) {
+            case bold -> sb.append("<b>");
+            case italic -> sb.append("<i>");
+            case underline -> sb.append("<u>");
+            case strikethrough -> sb.append("<s>");
+            case spoiler -> sb.append("<span class=\"tg-spoiler\">");
+            case code -> sb.append("<code>");
+            case pre -> sb.append("<pre>");
+            case text_link -> {
+                sb.append("<a href=\"");
+                if (e.url() != null)
+                    appendEscaped(sb, e.url(), 0, e.url().length());
+
+                sb.append("\">");
+            }
+            default -> { }
+        }
+    }
+
+    private static void appendCloseTag(StringBuilder sb, MessageEntity e) {
+        switch (e.type()) {
+            case bold -> sb.append("</b>");
+            case italic -> sb.append("</i>");
+            case underline -> sb.append("</u>");
+            case strikethrough -> sb.append("</s>");
+            case spoiler -> sb.append("</span>");
+            case code -> sb.append("</code>");
+            case pre -> sb.append("</pre>");
+            case text_link -> sb.append("</a>");
+            default -> { }
+        }
+    }
+
+    /*
+     * Unchanged runs of text are copied at once
+     */
+    private static void appendEscaped(StringBuilder sb, String text, int from, int to) {
+        int run = from;
+        for (int i = from; i < to; i++) {
+            final String replacement = switch (text.charAt(i)) {
+                case '&' -> "&amp;";
+                case '<' -> "&lt;";
+                case '>' -> "&gt;";
+                default -> null;
+            };
+
+            if (replacement != null) {
+                sb.append(text, run, i).append(replacement);
+                run = i + 1;
+            }
+        }
+
+        if (run < to)
+            sb.append(text, run, to);
+    }
+}
@@ -0,0 +1,500 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgChat;
+import com.example.lib.context.ExistingMessageContext;
+import com.example.lib.context.InteractiveMessageContext;
+import com.example.lib.menu.CachedMenuInfoSupplier;
+import com.example.lib.menu.MenuInfoSupplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Keeps message contexts in append-only log files, one file per chat:
+ *  1. Every save or removal appends a record to the end of chat file. Files of recently used chats are kept open
+ *  2. On the first access to a chat its file is scanned once to build an index of record offsets,
+ *     contexts themselves are read only when they're requested
+ *  3. When the file contains much more outdated records than live ones, it's compacted
+ * Only {@link Serializable} values of a context are stored. They are read back through an allowlist filter:
+ * JDK value types (java.lang, java.util, java.time, java.math) are allowed by default, classes of the bot
+ * must be allowed explicitly, anything else fails the record instead of being instantiated.
+ * Menu supplier is stored by class name and restored with its no-args constructor, so only suppliers without
+ * instance fields are stored: a stateful supplier would silently lose its state.
+ */
+public class FileMessageContextStore implements MessageContextStore, Closeable {
+    private static final Logger log = LoggerFactory.getLogger(FileMessageContextStore.class);
+
+    private static final byte RECORD_SAVE = 0;
+    private static final byte RECORD_REMOVE = 1;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + Long.BYTES + Byte.BYTES;
+    private static final int MAX_OPEN_CHATS = 10_000;
+    private static final int LOCK_STRIPES = 64;
+    private static final List<String> JDK_CLASSES = List.of("java.lang.*", "java.util.**", "java.time.*",
+            "java.math.*");
+    private static final ClassValue<Boolean> restorableSuppliers = new ClassValue<>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return isRestorable(type);
+        }
+    };
+
+    private final Path directory;
+    private final long ttlMillis;
+    private final ObjectInputFilter filter;
+    private final LinkedHashMap<Long, ChatLog> chatLogs = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentLinkedQueue<ChatLog> closingLogs = new ConcurrentLinkedQueue<>();
+    private final ConcurrentHashMap<String, MenuInfoSupplier> menuSuppliers = new ConcurrentHashMap<>();
+    private final Set<Class<?>> reportedSuppliers = ConcurrentHashMap.newKeySet();
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    public FileMessageContextStore(Path directory) {
+        this(directory, MessageContextCache.DEFAULT_TTL);
+    }
+
+    /**
+     * @param ttl contexts saved earlier than ttl ago are considered expired
+     */
+    public FileMessageContextStore(Path directory, Duration ttl) {
+        this(directory, ttl, List.of());
+    }
+
+    /**
+     * @param ttl contexts saved earlier than ttl ago are considered expired
+     * @param allowedClasses classes of context values which could be restored besides JDK ones, as patterns of
+     *                       {@link ObjectInputFilter.Config#createFilter}, e.g. {@code "com.example.bot.model.*"}
+     */
+    public FileMessageContextStore(Path directory, Duration ttl, List<String> allowedClasses) {
+        this.directory = directory;
+        this.ttlMillis = ttl.toMillis();
+        for (int i = 0; i < locks.length; i++)
+            locks[i] = new Object();
+
+        final var patterns = new ArrayList<>(JDK_CLASSES);
+        patterns.addAll(allowedClasses);
+        patterns.add("maxdepth=64");
+        patterns.add("!*");
+        this.filter = ObjectInputFilter.Config.createFilter(String.join(";", patterns));
+
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create message context directory " + directory, e);
+        }
+    }
+
+    @Override
+    public InteractiveMessageContext load(TgChat chat, Integer msgId) {
+        try {
+            synchronized (lockOf(chat.chatId)) {
+                final var chatLog = chatLog(chat.chatId);
+                final var record = chatLog.index.get(msgId);
+                if (record == null)
+                    return null;
+
+                if (System.currentTimeMillis() - record.savedAt > ttlMillis) {
+                    chatLog.index.remove(msgId);
+                    return null;
+                }
+
+                try {
+                    final var body = ByteBuffer.allocate(record.length);
+                    readFully(chatLog.channel(false), body, record.offset + HEADER_SIZE);
+                    return deserialize(chat, msgId, body.array());
+                } catch (Exception e) {
+                    log.error("Unable to restore context of message {} in chat {}", msgId, chat.chatId, e);
+                    return null;
+                }
+            }
+        } finally {
+            closeEvictedLogs();
+        }
+    }
+
+    @Override
+    public void save(TgChat chat, Integer msgId, InteractiveMessageContext context) {
+        final byte[] body;
+        try {
+            body = serialize(context);
+        } catch (IOException e) {
+            log.error("Unable to serialize context of message {} in chat {}", msgId, chat.chatId, e);
+            return;
+        }
+
+        append(chat.chatId, msgId, RECORD_SAVE, body);
+    }
+
+    @Override
+    public void remove(TgChat chat, Integer msgId) {
+        append(chat.chatId, msgId, RECORD_REMOVE, new byte[0]);
+    }
+
+    /**
+     * Compacts files of all chats which are known to this store at the moment.
+     */
+    public void compact() {
+        for (var chatId : openChats()) {
+            synchronized (lockOf(chatId)) {
+                compact(chatLog(chatId));
+            }
+        }
+
+        closeEvictedLogs();
+    }
+
+    /**
+     * Closes files of all chats. The store could still be used after that, files are opened again on demand.
+     */
+    @Override
+    public void close() {
+        for (var chatId : openChats()) {
+            final ChatLog chatLog;
+            synchronized (chatLogs) {
+                chatLog = chatLogs.remove(chatId);
+            }
+
+            if (chatLog != null)
+                closingLogs.add(chatLog);
+        }
+
+        closeEvictedLogs();
+    }
+
+    private List<Long> openChats() {
+        synchronized (chatLogs) {
+            return List.copyOf(chatLogs.keySet());
+        }
+    }
+
+    private void append(Long chatId, Integer msgId, byte type, byte[] body) {
+        try {
+            synchronized (lockOf(chatId)) {
+                final var chatLog = chatLog(chatId);
+                final long now = System.currentTimeMillis();
+                final var record = ByteBuffer.allocate(HEADER_SIZE + body.length)
+                        .putInt(body.length)
+                        .putInt(msgId)
+                        .putLong(now)
+                        .put(type)
+                        .put(body)
+                        .flip();
+
+                try {
+                    final var channel = chatLog.channel(true);
+                    final long offset = channel.size();
+                    while (record.hasRemaining())
+                        channel.write(record, offset + record.position());
+
+                    chatLog.records++;
+                    if (type == RECORD_SAVE) {
+                        chatLog.index.put(msgId, new RecordRef(offset, body.length, now));
+                    } else {
+                        chatLog.index.remove(msgId);
+                    }
+                } catch (IOException e) {
+                    log.error("Unable to write context of message {} in chat {}", msgId, chatId, e);
+                    return;
+                }
+
+                if (chatLog.records > 2L * chatLog.index.size() + 16)
+                    compact(chatLog);
+            }
+        } finally {
+            closeEvictedLogs();
+        }
+    }
+
+    /*
+     * Files are guarded by striped locks rather than by ChatLog objects, because a ChatLog could be dropped
+     * from the cache and created again while it's still in use
+     */
+    private Object lockOf(Long chatId) {
+        return locks[Long.hashCode(chatId) & (LOCK_STRIPES - 1)];
+    }
+
+    /*
+     * Must be called under lock of the chat. Logs dropped from the cache are closed later by closeEvictedLogs,
+     * since the caller holds lock of another chat
+     */
+    private ChatLog chatLog(Long chatId) {
+        synchronized (chatLogs) {
+            final var chatLog = chatLogs.get(chatId);
+            if (chatLog != null)
+                return chatLog;
+        }
+
+        final var chatLog = new ChatLog(chatId, directory.resolve(chatId + ".ctx"));
+        index(chatLog);
+
+        synchronized (chatLogs) {
+            chatLogs.put(chatId, chatLog);
+            if (chatLogs.size() > MAX_OPEN_CHATS) {
+                final var eldest = chatLogs.entrySet().iterator();
+                closingLogs.add(eldest.next().getValue());
+                eldest.remove();
+            }
+        }
+
+        return chatLog;
+    }
+
+    /*
+     * Must be called without holding lock of any chat, so locks of dropped logs could be taken
+     */
+    private void closeEvictedLogs() {
+        ChatLog chatLog;
+        while ((chatLog = closingLogs.poll()) != null) {
+            synchronized (lockOf(chatLog.chatId)) {
+                chatLog.close();
+            }
+        }
+    }
+
+    private void index(ChatLog chatLog) {
+        if (!Files.exists(chatLog.file))
+            return;
+
+        try {
+            final var channel = chatLog.channel(false);
+            final long size = channel.size();
+            final var header = ByteBuffer.allocate(HEADER_SIZE);
+            long offset = 0;
+
+            while (offset + HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, offset);
+                header.flip();
+
+                final int length = header.getInt();
+                final int msgId = header.getInt();
+                final long savedAt = header.getLong();
+                final byte type = header.get();
+                if (length < 0 || offset + HEADER_SIZE + length > size)
+                    break;
+
+                if (type == RECORD_SAVE) {
+                    chatLog.index.put(msgId, new RecordRef(offset, length, savedAt));
+                } else {
+                    chatLog.index.remove(msgId);
+                }
+
+                chatLog.records++;
+                offset += HEADER_SIZE + length;
+            }
+
+            // Tail of the file could be damaged if the process died in the middle of writing
+            if (offset < size) {
+                log.warn("Truncating damaged tail of {}", chatLog.file);
+                channel.truncate(offset);
+            }
+        } catch (IOException e) {
+            log.error("Unable to read message contexts from {}", chatLog.file, e);
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer target, long position) throws IOException {
+        while (target.hasRemaining()) {
+            final int read = channel.read(target, position);
+            if (read < 0)
+                throw new EOFException("Unexpected end of " + channel);
+
+            position += read;
+        }
+    }
+
+    private void compact(ChatLog chatLog) {
+        final long now = System.currentTimeMillis();
+        chatLog.index.values().removeIf(r -> now - r.savedAt > ttlMillis);
+
+        final var tmp = chatLog.file.resolveSibling(chatLog.file.getFileName() + ".tmp");
+        final var newIndex = new HashMap<Integer, RecordRef>();
+        try (var target = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+
+            final var source = chatLog.channel(true);
+            long offset = 0;
+            for (var entry : chatLog.index.entrySet()) {
+                final var record = entry.getValue();
+                final long size = HEADER_SIZE + record.length;
+                for (long copied = 0; copied < size; )
+                    copied += source.transferTo(record.offset + copied, size - copied, target);
+
+                newIndex.put(entry.getKey(), new RecordRef(offset, record.length, record.savedAt));
+                offset += size;
+            }
+        } catch (IOException e) {
+            log.error("Unable to compact {}", chatLog.file, e);
+            return;
+        }
+
+        // The open channel points to the replaced file, so it's reopened after the move
+        chatLog.close();
+        try {
+            Files.move(tmp, chatLog.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.error("Unable to replace {} with compacted file", chatLog.file, e);
+            return;
+        }
+
+        chatLog.index.clear();
+        chatLog.index.putAll(newIndex);
+        chatLog.records = newIndex.size();
+    }
+
+    private byte[] serialize(InteractiveMessageContext context) throws IOException {
+        final var values = new HashMap<String, Object>();
+        for (var entry : context.entrySet()) {
+            if (entry.getValue() instanceof Serializable) {
+                values.put(entry.getKey(), entry.getValue());
+            } else {
+                log.debug("Context value {} isn't serializable, it won't be stored", entry.getKey());
+            }
+        }
+
+        final var bytes = new ByteArrayOutputStream();
+        try (var out = new ObjectOutputStream(bytes)) {
+            out.writeUTF(supplierName(context.latestMenuSupplier));
+            out.writeObject(values);
+        }
+
+        return bytes.toByteArray();
+    }
+
+    private String supplierName(MenuInfoSupplier supplier) {
+        if (supplier == null)
+            return "";
+
+        if (!restorableSuppliers.get(supplier.getClass())) {
+            if (reportedSuppliers.add(supplier.getClass())) {
+                log.warn("Menu supplier {} has instance fields or no no-args constructor, it won't be stored",
+                        supplier.getClass().getName());
+            }
+
+            return "";
+        }
+
+        return supplier.getClass().getName();
+    }
+
+    @SuppressWarnings("unchecked")
+    private InteractiveMessageContext deserialize(TgChat chat, Integer msgId, byte[] body)
+            throws IOException, ClassNotFoundException {
+
+        try (var in = new ObjectInputStream(new ByteArrayInputStream(body))) {
+            in.setObjectInputFilter(filter);
+            final var supplierClass = in.readUTF();
+            final var values = (Map<String, Object>) in.readObject();
+
+            final var context = new ExistingMessageContext(chat, msgId);
+            context.putAll(values);
+            if (!supplierClass.isEmpty())
+                context.latestMenuSupplier = menuSupplier(supplierClass);
+
+            return context;
+        }
+    }
+
+    /*
+     * Stored suppliers are stateless, so a single instance per class is shared by all restored contexts.
+     * The class is checked before it's initialized or instantiated
+     */
+    private MenuInfoSupplier menuSupplier(String className) {
+        return menuSuppliers.computeIfAbsent(className, name -> {
+            try {
+                final var type = Class.forName(name, false, FileMessageContextStore.class.getClassLoader());
+                if (!restorableSuppliers.get(type)) {
+                    log.warn("Class {} isn't a stateless menu supplier, it won't be restored", name);
+                    return null;
+                }
+
+                return (MenuInfoSupplier) type.getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException e) {
+                log.warn("Unable to restore menu supplier {}", name, e);
+                return null;
+            }
+        });
+    }
+
+    /*
+     * Fields of library suppliers are caches, which are fine to start empty
+     */
+    private static boolean isRestorable(Class<?> type) {
+        if (!MenuInfoSupplier.class.isAssignableFrom(type) || Modifier.isAbstract(type.getModifiers()) ||
+                type.isAnonymousClass() || type.isHidden()) {
+            return false;
+        }
+
+        try {
+            type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+
+        for (var c = type; c != MenuInfoSupplier.class && c != CachedMenuInfoSupplier.class; c = c.getSuperclass()) {
+            for (var field : c.getDeclaredFields()) {
+                if (!Modifier.isStatic(field.getModifiers()))
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static final class ChatLog {
+        private final Long chatId;
+        private final Path file;
+        private final HashMap<Integer, RecordRef> index = new HashMap<>();
+        private FileChannel channel;
+        private long records;
+
+        private ChatLog(Long chatId, Path file) {
+            this.chatId = chatId;
+            this.file = file;
+        }
+
+        /*
+         * Files of chats which only had their contexts looked up aren't created
+         */
+        private FileChannel channel(boolean create) throws IOException {
+            if (channel == null || !channel.isOpen()) {
+                channel = create ?
+                        FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                StandardOpenOption.WRITE) :
+                        FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+
+            return channel;
+        }
+
+        private void close() {
+            if (channel == null)
+                return;
+
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("Unable to close {}", file, e);
+            }
+
+            channel = null;
+        }
+    }
+
+    private record RecordRef(long offset, int length, long savedAt) { }
+}
@@ -0,0 +1,220 @@
+package com.example.lib.internals;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormat;
+
+/**
+ * Immutable, thread-safe replacement of {@link DecimalFormat} for fixed point patterns like {@code "#,###.00"}:
+ * a fixed amount of fraction digits, optional grouping, no exponent.
+ * Output is exactly the same as the one of DecimalFormat created with the same pattern at the same moment
+ * (symbols of the default locale):
+ *  1. Numbers are rounded with long arithmetic and printed without creating a formatter
+ *  2. Numbers which are too close to a rounding tie are rounded HALF_EVEN from their shortest decimal form,
+ *     as DecimalFormat does, since double multiplication could move them to the other side of the tie
+ *  3. Numbers which don't fit long arithmetic are formatted by a copy of DecimalFormat made for the call,
+ *     since its digits of big numbers come from the internal decimal form of the value, which isn't available
+ *     through a public API. Such numbers are rare in messages, so the copy costs little
+ * Nothing is locked, so formatting never blocks a thread, virtual threads included.
+ */
+public final class FixedPointFormat {
+    private static final int MAX_FRACTION_DIGITS = 9;
+    private static final long[] POWERS_OF_TEN = new long[19];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private static final double MAX_EXACT_LONG = 0x1p53;
+
+    // Never used for formatting, only copied, so it isn't changed and could be copied by several threads at once
+    private final DecimalFormat prototype;
+    private final int fractionDigits;
+    private final int minIntegerDigits;
+    private final int groupingSize;
+    private final char zeroDigit;
+    private final char groupingSeparator;
+    private final char decimalSeparator;
+    private final String positivePrefix;
+    private final String positiveSuffix;
+    private final String negativePrefix;
+    private final String negativeSuffix;
+    private final String infinity;
+    private final String nan;
+
+    public FixedPointFormat(String pattern) {
+        prototype = new DecimalFormat(pattern);
+        if (prototype.getMinimumFractionDigits() != prototype.getMaximumFractionDigits() ||
+                prototype.getMaximumFractionDigits() > MAX_FRACTION_DIGITS ||
+                prototype.getMinimumIntegerDigits() > 18 || prototype.getMultiplier() != 1) {
+
+            throw new IllegalArgumentException("Unsupported pattern: " + pattern);
+        }
+
+        final var symbols = prototype.getDecimalFormatSymbols();
+        fractionDigits = prototype.getMaximumFractionDigits();
+        minIntegerDigits = prototype.getMinimumIntegerDigits();
+        groupingSize = prototype.isGroupingUsed() ? prototype.getGroupingSize() : 0;
+        zeroDigit = symbols.getZeroDigit();
+        groupingSeparator = symbols.getGroupingSeparator();
+        decimalSeparator = symbols.getDecimalSeparator();
+        positivePrefix = prototype.getPositivePrefix();
+        positiveSuffix = prototype.getPositiveSuffix();
+        negativePrefix = prototype.getNegativePrefix();
+        negativeSuffix = prototype.getNegativeSuffix();
+        infinity = symbols.getInfinity();
+        nan = symbols.getNaN();
+    }
+
+    public String format(double number) {
+        if (Double.isNaN(number))
+            return nan;
+
+        final boolean negative = number < 0 || (number == 0 && 1 / number < 0);
+        final double abs = Math.abs(number);
+        if (Double.isInfinite(abs)) {
+            return (negative ? negativePrefix : positivePrefix) + infinity +
+                    (negative ? negativeSuffix : positiveSuffix);
+        }
+
+        final long scale = POWERS_OF_TEN[fractionDigits];
+        final double scaled = abs * scale;
+        if (scaled >= MAX_EXACT_LONG)
+            return ((DecimalFormat) prototype.clone()).format(number);
+
+        final long units = isNearTie(scaled) ? roundNearTie(abs) : (long) Math.rint(scaled);
+
+        final var sb = new StringBuilder(24).append(negative ? negativePrefix : positivePrefix);
+        final long integer = units / scale;
+        final long fraction = units % scale;
+
+        // DecimalFormat prints at least one digit
+        final int integerDigits = integer == 0 && minIntegerDigits == 0 && fractionDigits == 0 ?
+                1 : Math.max(minIntegerDigits, digitCount(integer));
+        appendInteger(sb, integer, integerDigits);
+
+        if (fractionDigits > 0) {
+            sb.append(decimalSeparator);
+            appendDigits(sb, fraction, fractionDigits);
+        }
+
+        return sb.append(negative ? negativeSuffix : positiveSuffix).toString();
+    }
+
+    /*
+     * Rounds the value to units of the last fraction digit the way DecimalFormat does: its shortest decimal form
+     * is rounded HALF_EVEN, and if that form ends with 5 right at the rounding position, the exact decimal value
+     * tells the side of the tie. Digits are collected the same way as DecimalFormat does, including a trailing
+     * zero of a form like "5.0E-4", which makes such values round down
+     */
+    private long roundNearTie(double abs) {
+        final var text = Double.toString(abs);
+        final var digits = new byte[text.length()];
+        int count = 0;
+        int decimalAt = -1;
+        int exponent = 0;
+        int leadingZeros = 0;
+        boolean nonZeroSeen = false;
+        for (int i = 0; i < text.length(); i++) {
+            final char ch = text.charAt(i);
+            if (ch == '.') {
+                decimalAt = count;
+            } else if (ch == 'E') {
+                exponent = Integer.parseInt(text, i + 1, text.length(), 10);
+                break;
+            } else {
+                if (!nonZeroSeen) {
+                    nonZeroSeen = ch != '0';
+                    if (!nonZeroSeen && decimalAt != -1)
+                        leadingZeros++;
+                }
+
+                if (nonZeroSeen)
+                    digits[count++] = (byte) (ch - '0');
+            }
+        }
+
+        if (decimalAt == -1)
+            decimalAt = count;
+
+        if (nonZeroSeen)
+            decimalAt += exponent - leadingZeros;
+
+        // Positive if the shortest form is above the exact value, zero if it's exact
+        final int side = new BigDecimal(text).compareTo(new BigDecimal(abs));
+        if (-decimalAt > fractionDigits)
+            return 0;
+
+        if (-decimalAt == fractionDigits)
+            return roundsUp(digits, count, 0, side) ? 1 : 0;
+
+        while (count > 1 && digits[count - 1] == 0)
+            count--;
+
+        // Index of the first digit which doesn't fit the fraction
+        final int position = fractionDigits + decimalAt;
+        long units = 0;
+        for (int i = 0; i < Math.min(count, position); i++)
+            units = units * 10 + digits[i];
+
+        for (int i = count; i < position; i++)
+            units *= 10;
+
+        return roundsUp(digits, count, position, side) ? units + 1 : units;
+    }
+
+    private static boolean roundsUp(byte[] digits, int count, int position, int side) {
+        if (position >= count || digits[position] < 5)
+            return false;
+
+        if (digits[position] > 5)
+            return true;
+
+        if (position == count - 1) {
+            if (side != 0)
+                return side < 0;
+
+            return position > 0 && digits[position - 1] % 2 != 0;
+        }
+
+        for (int i = position + 1; i < count; i++) {
+            if (digits[i] != 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    /*
+     * Double multiplication could move a value which is close to a tie to the other side of it
+     */
+    private static boolean isNearTie(double scaled) {
+        return Math.abs(scaled - Math.floor(scaled) - 0.5) <= 4 * Math.ulp(scaled);
+    }
+
+    private void appendInteger(StringBuilder sb, long value, int digits) {
+        for (int i = digits - 1; i >= 0; i--) {
+            sb.append((char) (zeroDigit + digitAt(value, i)));
+            if (groupingSize > 0 && i > 0 && i % groupingSize == 0)
+                sb.append(groupingSeparator);
+        }
+    }
+
+    private void appendDigits(StringBuilder sb, long value, int width) {
+        for (int i = width - 1; i >= 0; i--)
+            sb.append((char) (zeroDigit + digitAt(value, i)));
+    }
+
+    private static int digitAt(long value, int position) {
+        return position < POWERS_OF_TEN.length ? (int) (value / POWERS_OF_TEN[position] % 10) : 0;
+    }
+
+    private static int digitCount(long value) {
+        int count = 0;
+        while (count < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[count])
+            count++;
+
+        return count;
+    }
+}
@@ -1,55 +1,181 @@
 package com.example.lib.internals;
 
-import java.util.*;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Core points of this collection:
  *  1. Have a HashMap-like structure with limited size
  *  2. If the size reaches its limit - we just remove the oldest item from collection
  *  3. ID generating responsibility is on collection
+ * Items are kept in a lock-free ring: the n-th added item takes slot n % capacity, so adding an item
+ * evicts the oldest one in O(1). ID consists of the insertion number and a random 48-bit nonce, so IDs
+ * of evicted items don't match new ones and couldn't be guessed. IDs are base64url strings of 11 characters
+ * for the first 65536 items and 15 for the first 2^40, short enough to be put into
+ * a {@link com.example.lib.menu.CallbackReference} payload.
  */
 public class LimitedWrappedMap<T> {
-    private final LinkedList<UUID> list = new LinkedList<>();
-    private final HashMap<UUID, T> map = new HashMap<>();
+    private static final int NONCE_BYTES = 6;
+    private static final int NONCES_PER_BLOCK = 128;
+    private static final SecureRandom random = new SecureRandom();
+    private static final AtomicReference<NonceBlock> nonces = new AtomicReference<>(new NonceBlock());
+    private static final Base64.Encoder encoder = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder decoder = Base64.getUrlDecoder();
+
+    private final AtomicReferenceArray<Entry<T>> slots;
+    private final AtomicLong sequence = new AtomicLong();
     private final int maxCapacity;
 
     public LimitedWrappedMap(int maxCapacity) {
+        if (maxCapacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive");
+
         this.maxCapacity = maxCapacity;
+        this.slots = new AtomicReferenceArray<>(maxCapacity);
     }
 
-    public synchronized String add(T item) {
-        final var newId = UUID.randomUUID();
-        list.add(newId);
-        map.put(newId, item);
+    public String add(T item) {
+        final long number = sequence.getAndIncrement();
+        final var entry = new Entry<>(number, nextNonce(), item);
+        final int slot = slotOf(number);
+
+        // A slower thread with an older item mustn't overwrite a newer one
+        while (true) {
+            final var current = slots.get(slot);
+            if (current != null && current.number > number)
+                break;
 
-        if (list.size() > maxCapacity) {
-            final var itemToRemove = list.removeFirst();
-            map.remove(itemToRemove);
+            if (slots.compareAndSet(slot, current, entry))
+                break;
         }
 
-        return newId.toString();
+        return toId(entry);
     }
 
     /**
      * nullable
      * neverThrows
      */
-    public synchronized T get(String id) {
+    public T get(String id) {
+        final var entry = find(id);
+        return entry != null ? entry.item : null;
+    }
+
+    /**
+     * nullable
+     * neverThrows
+     */
+    public T remove(String id) {
+        while (true) {
+            final var entry = find(id);
+            if (entry == null)
+                return null;
+
+            if (slots.compareAndSet(slotOf(entry.number), entry, null))
+                return entry.item;
+        }
+    }
+
+    public List<T> remove(Collection<String> ids) {
+        final var removed = new ArrayList<T>(ids.size());
+        for (var id : ids)
+            removed.add(remove(id));
+
+        return removed;
+    }
+
+    private Entry<T> find(String id) {
+        final byte[] bytes;
         try {
-            return map.get(UUID.fromString(id));
-        } catch (Exception e) {
+            bytes = id != null ? decoder.decode(id) : null;
+        } catch (IllegalArgumentException e) {
             return null;
         }
+
+        if (bytes == null || bytes.length <= NONCE_BYTES || bytes.length > NONCE_BYTES + Long.BYTES)
+            return null;
+
+        final long nonce = readBytes(bytes, 0, NONCE_BYTES);
+        final long number = readBytes(bytes, NONCE_BYTES, bytes.length - NONCE_BYTES);
+        // Every item has a single ID, the number padded with extra zero bytes isn't accepted
+        if (number < 0 || bytes.length - NONCE_BYTES != numberBytes(number))
+            return null;
+
+        final var entry = slots.get(slotOf(number));
+        return entry != null && entry.number == number && entry.nonce == nonce ? entry : null;
     }
 
-    public synchronized T remove(String id) {
-        return map.remove(UUID.fromString(id));
+    private int slotOf(long number) {
+        return (int) (number % maxCapacity);
     }
 
-    public synchronized List<T> remove(Collection<String> ids) {
-        return ids.stream()
-                .map(UUID::fromString)
-                .map(map::remove)
-                .toList();
+    /*
+     * Nonce goes first and the insertion number takes as few bytes as it needs
+     */
+    private static String toId(Entry<?> entry) {
+        final int numberBytes = numberBytes(entry.number);
+        final var bytes = new byte[NONCE_BYTES + numberBytes];
+        writeBytes(bytes, 0, NONCE_BYTES, entry.nonce);
+        writeBytes(bytes, NONCE_BYTES, numberBytes, entry.number);
+        return encoder.encodeToString(bytes);
+    }
+
+    private static int numberBytes(long number) {
+        return Math.max(2, (Long.SIZE - Long.numberOfLeadingZeros(number) + 7) / 8);
+    }
+
+    private static void writeBytes(byte[] target, int offset, int length, long value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            target[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private static long readBytes(byte[] source, int offset, int length) {
+        long value = 0;
+        for (int i = offset; i < offset + length; i++)
+            value = (value << 8) | (source[i] & 0xFF);
+
+        return value;
+    }
+
+    /*
+     * Random bytes are taken from SecureRandom in blocks, so it's invoked once per many IDs.
+     * Threads take nonces from the current block without locks, the one which exhausts it installs a new block.
+     * A thread which lost the race reuses its block on the next retry, so a call fills at most one block
+     * however many times it retries
+     */
+    private static long nextNonce() {
+        NonceBlock fresh = null;
+        while (true) {
+            final var block = nonces.get();
+            final int index = block.next.getAndIncrement();
+            if (index < NONCES_PER_BLOCK)
+                return readBytes(block.bytes, index * NONCE_BYTES, NONCE_BYTES);
+
+            if (fresh == null)
+                fresh = new NonceBlock();
+
+            if (nonces.compareAndSet(block, fresh))
+                fresh = null;
+        }
     }
+
+    private static final class NonceBlock {
+        final byte[] bytes = new byte[NONCES_PER_BLOCK * NONCE_BYTES];
+        final AtomicInteger next = new AtomicInteger();
+
+        NonceBlock() {
+            random.nextBytes(bytes);
+        }
+    }
+
+    private record Entry<T>(long number, long nonce, T item) { }
 }
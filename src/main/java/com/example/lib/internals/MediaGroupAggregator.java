@@ -0,0 +1,63 @@
+package com.example.lib.internals;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects items sharing the same media group id (album) and completes the group once no new item of the group
+ * arrived during the window. The timer only completes the future of the group, so it never runs handlers:
+ * the group is handled by whoever waits for the future returned for its first item.
+ */
+public class MediaGroupAggregator<T> {
+    private final Duration window;
+    private final ScheduledExecutorService timer;
+    private final HashMap<String, Group<T>> groups = new HashMap<>();
+
+    public MediaGroupAggregator(Duration window, ScheduledExecutorService timer) {
+        this.window = window;
+        this.timer = timer;
+    }
+
+    /**
+     * @return future completed with all items of the group if the item starts a new group,
+     * null if the item is added to a group which is still collected
+     */
+    public synchronized CompletableFuture<List<T>> add(String mediaGroupId, T item) {
+        final var pending = groups.get(mediaGroupId);
+        final var group = pending != null ? pending : new Group<T>();
+        if (pending == null)
+            groups.put(mediaGroupId, group);
+
+        group.items.add(item);
+
+        if (group.flush != null)
+            group.flush.cancel(false);
+
+        final int size = group.items.size();
+        group.flush = timer.schedule(() -> flush(mediaGroupId, group, size), window.toNanos(), TimeUnit.NANOSECONDS);
+
+        return pending == null ? group.completed : null;
+    }
+
+    private void flush(String mediaGroupId, Group<T> group, int expectedSize) {
+        synchronized (this) {
+            // The group got a new item after this flush was scheduled, so a later flush will complete it
+            if (group.items.size() != expectedSize || !groups.remove(mediaGroupId, group))
+                return;
+        }
+
+        group.completed.complete(group.items);
+    }
+
+    private static final class Group<T> {
+        private final List<T> items = new ArrayList<>();
+        private final CompletableFuture<List<T>> completed = new CompletableFuture<>();
+        private ScheduledFuture<?> flush;
+    }
+}
@@ -0,0 +1,193 @@
+package com.example.lib.internals;
+
+import com.example.lib.context.InteractiveMessageContext;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Message contexts of a single chat:
+ *  1. Contexts expire TTL after their message was sent (48 hours by default, same as telegram edit window),
+ *     however often they're used. {@link #evictExpired()} is invoked for every chat periodically (see
+ *     {@link ChatRegistry#evictExpiredContexts()}), so expired contexts of idle chats don't hold the budget
+ *  2. Number of contexts per chat is limited, the least recently used ones are evicted first
+ *  3. Number of contexts across all chats is limited by a shared budget, a chat exceeding it evicts its own
+ *     expired contexts and then the least recently used ones
+ * Ids of evicted contexts are remembered as a watermark, so a callback from an evicted menu could be detected.
+ * The watermark outlives the cache: {@link ChatRegistry} keeps it when the chat is evicted and restores it
+ * when the chat is created again.
+ */
+public class MessageContextCache {
+    public static final Duration DEFAULT_TTL = Duration.ofHours(48);
+    public static final int DEFAULT_PER_CHAT_LIMIT = 256;
+    public static final long DEFAULT_GLOBAL_LIMIT = 1_000_000;
+
+    private final LinkedHashMap<Integer, Entry> contexts = new LinkedHashMap<>(16, 0.75f, true);
+    private final Limits limits;
+    private int evictedWatermark = Integer.MIN_VALUE;
+
+    public MessageContextCache(Limits limits) {
+        this.limits = limits;
+    }
+
+    /**
+     * nullable
+     */
+    public synchronized InteractiveMessageContext get(Integer msgId) {
+        final var entry = contexts.get(msgId);
+        if (entry == null)
+            return null;
+
+        if (System.nanoTime() - entry.createdAt > limits.ttl.toNanos()) {
+            evict(msgId);
+            return null;
+        }
+
+        return entry.context;
+    }
+
+    public synchronized InteractiveMessageContext computeIfAbsent(
+            Integer msgId, Function<Integer, InteractiveMessageContext> factory) {
+        final var existing = get(msgId);
+        if (existing != null)
+            return existing;
+
+        final var context = factory.apply(msgId);
+        put(msgId, context);
+        return context;
+    }
+
+    /**
+     * Replacing the context of a message keeps the time the message was sent
+     */
+    public synchronized void put(Integer msgId, InteractiveMessageContext context) {
+        final var previous = contexts.get(msgId);
+        contexts.put(msgId, new Entry(context, previous != null ? previous.createdAt : System.nanoTime()));
+        if (previous == null)
+            limits.budget.incrementAndGet();
+
+        if (isOverLimit())
+            evictExpired();
+
+        while (contexts.size() > 1 && isOverLimit())
+            evict(contexts.keySet().iterator().next());
+    }
+
+    /**
+     * @return true if context of this message could have existed, but it was evicted
+     */
+    public synchronized boolean wasEvicted(Integer msgId) {
+        return !contexts.containsKey(msgId) && msgId <= evictedWatermark;
+    }
+
+    /**
+     * @return highest id of evicted contexts, {@link Integer#MIN_VALUE} if nothing was evicted
+     */
+    public synchronized int getEvictedWatermark() {
+        return evictedWatermark;
+    }
+
+    /**
+     * Restores the watermark of a previous cache of the same chat, e.g. when an evicted chat is created again
+     */
+    public synchronized void raiseEvictedWatermark(int watermark) {
+        evictedWatermark = Math.max(evictedWatermark, watermark);
+    }
+
+    public synchronized int size() {
+        return contexts.size();
+    }
+
+    /**
+     * Drops all contexts, e.g. when the chat itself is evicted.
+     */
+    public synchronized void clear() {
+        limits.budget.addAndGet(-contexts.size());
+        for (var msgId : contexts.keySet())
+            evictedWatermark = Math.max(evictedWatermark, msgId);
+
+        contexts.clear();
+    }
+
+    /**
+     * Drops contexts of messages sent earlier than TTL ago. Contexts are ordered by access, not by sending,
+     * so all of them are checked.
+     */
+    public synchronized void evictExpired() {
+        final long now = System.nanoTime();
+        final long ttl = limits.ttl.toNanos();
+        final var it = contexts.entrySet().iterator();
+        while (it.hasNext()) {
+            final var entry = it.next();
+            if (now - entry.getValue().createdAt > ttl) {
+                it.remove();
+                limits.budget.decrementAndGet();
+                evictedWatermark = Math.max(evictedWatermark, entry.getKey());
+            }
+        }
+    }
+
+    private boolean isOverLimit() {
+        return contexts.size() > limits.perChat || limits.budget.get() > limits.global;
+    }
+
+    private void evict(Integer msgId) {
+        contexts.remove(msgId);
+        limits.budget.decrementAndGet();
+        evictedWatermark = Math.max(evictedWatermark, msgId);
+    }
+
+    /**
+     * Limits shared by all chats of a bot
+     */
+    public static final class Limits {
+        private final int perChat;
+        private final Duration ttl;
+        private final long global;
+        private final AtomicLong budget = new AtomicLong();
+
+        public Limits(int perChat, Duration ttl, long global) {
+            if (perChat <= 0 || global <= 0)
+                throw new IllegalArgumentException("Limits must be positive");
+
+            this.perChat = perChat;
+            this.ttl = ttl;
+            this.global = global;
+        }
+
+        public static Limits defaults() {
+            return new Limits(DEFAULT_PER_CHAT_LIMIT, DEFAULT_TTL, DEFAULT_GLOBAL_LIMIT);
+        }
+
+        public int getPerChat() {
+            return perChat;
+        }
+
+        public Duration getTtl() {
+            return ttl;
+        }
+
+        public long getGlobal() {
+            return global;
+        }
+
+        /**
+         * @return amount of contexts kept by all chats at the moment
+         */
+        public long getUsed() {
+            return budget.get();
+        }
+    }
+
+    private static final class Entry {
+        private final InteractiveMessageContext context;
+        private final long createdAt;
+
+        private Entry(InteractiveMessageContext context, long createdAt) {
+            this.context = context;
+            this.createdAt = createdAt;
+        }
+    }
+}
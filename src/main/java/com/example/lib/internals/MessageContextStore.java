@@ -0,0 +1,19 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgChat;
+import com.example.lib.context.InteractiveMessageContext;
+
+/**
+ * Storage of message contexts which outlives the process, so menus keep working after restart.
+ * Contexts are loaded lazily, when a message without a context in memory is accessed.
+ */
+public interface MessageContextStore {
+    /**
+     * @return restored context or null if there is no stored context for this message
+     */
+    InteractiveMessageContext load(TgChat chat, Integer msgId);
+
+    void save(TgChat chat, Integer msgId, InteractiveMessageContext context);
+
+    void remove(TgChat chat, Integer msgId);
+}
@@ -0,0 +1,349 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgRequestException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * Queues outgoing requests and sends them respecting telegram flood limits:
+ *  1. Global limit for the whole bot (30 messages per second by default)
+ *  2. Per chat limit, which is different for private chats (1 per second after a burst of 3) and groups
+ *     (20 per minute). The burst lets a handler reply with a few messages without waiting a second for each
+ *  3. If telegram still responds with 429, the request is put back to the head of its chat queue and
+ *     the chat is paused for {@code retry_after} seconds
+ *  4. Optionally, a queued request could be replaced by a newer one with the same coalesce key, if no other
+ *     request of the chat was queued after it
+ * Requests of a single chat are sent one by one in the order they were submitted, coalescing included.
+ */
+public class OutboundScheduler {
+    private static final Logger log = LoggerFactory.getLogger(OutboundScheduler.class);
+
+    private static final int TOO_MANY_REQUESTS = 429;
+    private static final long IDLE_LANES_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(10);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final HashMap<Object, Lane> lanes = new HashMap<>();
+    private final ArrayDeque<Lane> activeLanes = new ArrayDeque<>();
+    private final AtomicInteger queued = new AtomicInteger();
+
+    private final TokenBucket global;
+    private final Supplier<TokenBucket> privateChatBucket;
+    private final Supplier<TokenBucket> groupChatBucket;
+
+    private Thread worker;
+    private volatile boolean running = true;
+    private long lastSweep = System.nanoTime();
+
+    public OutboundScheduler() {
+        this(new TokenBucket(30, 30, Duration.ofSeconds(1)),
+                () -> new TokenBucket(3, 1, Duration.ofSeconds(1)),
+                () -> new TokenBucket(1, 20, Duration.ofMinutes(1)));
+    }
+
+    public OutboundScheduler(TokenBucket global, Supplier<TokenBucket> privateChatBucket,
+                             Supplier<TokenBucket> groupChatBucket) {
+        this.global = global;
+        this.privateChatBucket = privateChatBucket;
+        this.groupChatBucket = groupChatBucket;
+    }
+
+    /**
+     * Queues a request to the chat.
+     * @param chatId chat id from the request, either a Long or a channel username
+     * @param attempt sends the request once, invoked again if telegram asks to retry later
+     * @return future completed with result of the last attempt
+     */
+    public <R> CompletableFuture<R> submit(Object chatId, Supplier<CompletableFuture<R>> attempt) {
+        return submit(chatId, null, attempt);
+    }
+
+    /**
+     * Queues a request to the chat. If a request with the same coalesce key is the last one waiting in the chat
+     * queue, it's replaced by the new one, so only the latest one is sent and both callers receive its result.
+     * A request with other requests of the chat queued after it isn't replaced, since the new one would be sent
+     * before them.
+     * @param coalesceKey nullable, requests with the same key in the same chat are considered redundant
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> submit(Object chatId, Object coalesceKey, Supplier<CompletableFuture<R>> attempt) {
+        lock.lock();
+        try {
+            if (!running)
+                throw new IllegalStateException("Scheduler is shut down");
+
+            ensureStarted();
+            final var lane = lanes.computeIfAbsent(chatId, this::createLane);
+            if (coalesceKey != null) {
+                final var queuedItem = (Item<R>) lane.coalescable.get(coalesceKey);
+                if (queuedItem != null && lane.items.peekLast() == queuedItem) {
+                    queuedItem.attempt = attempt;
+                    return queuedItem.result;
+                }
+            }
+
+            final var item = new Item<>(coalesceKey, attempt);
+            lane.items.add(item);
+            if (coalesceKey != null)
+                lane.coalescable.put(coalesceKey, item);
+
+            activate(lane);
+            queued.incrementAndGet();
+            changed.signal();
+            return item.result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return amount of requests which are queued or being sent at the moment
+     */
+    public int getQueueSize() {
+        return queued.get();
+    }
+
+    public int getQueueSize(Object chatId) {
+        lock.lock();
+        try {
+            final var lane = lanes.get(chatId);
+            if (lane == null)
+                return 0;
+
+            return lane.items.size() + (lane.inFlight ? 1 : 0);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Stops the worker, all requests which aren't sent yet are failed.
+     */
+    public void shutdown() {
+        final var dropped = new ArrayList<Item<?>>();
+        lock.lock();
+        try {
+            running = false;
+            for (var lane : lanes.values())
+                dropped.addAll(lane.items);
+
+            lanes.clear();
+            activeLanes.clear();
+            changed.signal();
+        } finally {
+            lock.unlock();
+        }
+
+        for (var item : dropped) {
+            queued.decrementAndGet();
+            item.result.completeExceptionally(new IllegalStateException("Scheduler is shut down"));
+        }
+    }
+
+    private Lane createLane(Object chatId) {
+        final boolean isPrivate = chatId instanceof Long id && id > 0;
+        return new Lane(chatId, isPrivate ? privateChatBucket.get() : groupChatBucket.get());
+    }
+
+    private void ensureStarted() {
+        if (worker != null)
+            return;
+
+        worker = new Thread(this::work, "tg-outbound-scheduler");
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    private void activate(Lane lane) {
+        if (!lane.active) {
+            lane.active = true;
+            activeLanes.add(lane);
+        }
+    }
+
+    private void work() {
+        final var batch = new ArrayList<Sending>();
+        while (running) {
+            lock.lock();
+            try {
+                final long wait = pump(System.nanoTime(), batch);
+                if (batch.isEmpty() && running)
+                    changed.awaitNanos(Math.min(wait, IDLE_LANES_SWEEP_INTERVAL));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } finally {
+                lock.unlock();
+            }
+
+            for (var sending : batch)
+                send(sending.lane, sending.item);
+
+            batch.clear();
+        }
+    }
+
+    /**
+     * Picks requests which could be sent right now. Called under lock.
+     * @return nanos to wait until the next request could be sent
+     */
+    private long pump(long now, List<Sending> batch) {
+        if (now - lastSweep > IDLE_LANES_SWEEP_INTERVAL) {
+            lanes.values().removeIf(l -> !l.active && !l.inFlight && l.bucket.isFull(now));
+            lastSweep = now;
+        }
+
+        long wait = Long.MAX_VALUE;
+        for (int i = activeLanes.size(); i > 0; i--) {
+            final var lane = activeLanes.poll();
+            if (lane.items.isEmpty()) {
+                lane.active = false;
+                continue;
+            }
+
+            activeLanes.add(lane);
+            if (lane.inFlight)
+                continue;
+
+            if (lane.blocked) {
+                if (lane.blockedUntil - now > 0) {
+                    wait = Math.min(wait, lane.blockedUntil - now);
+                    continue;
+                }
+
+                lane.blocked = false;
+            }
+
+            final long laneWait = lane.bucket.nanosUntilAvailable(now);
+            if (laneWait > 0) {
+                wait = Math.min(wait, laneWait);
+                continue;
+            }
+
+            if (!global.tryAcquire(now)) {
+                wait = Math.min(wait, global.nanosUntilAvailable(now));
+                break;
+            }
+
+            lane.bucket.tryAcquire(now);
+            lane.inFlight = true;
+            final var item = lane.items.poll();
+            if (item.coalesceKey != null)
+                lane.coalescable.remove(item.coalesceKey, item);
+
+            batch.add(new Sending(lane, item));
+        }
+
+        return wait;
+    }
+
+    private <R> void send(Lane lane, Item<R> item) {
+        final Supplier<CompletableFuture<R>> supplier;
+        lock.lock();
+        try {
+            supplier = item.attempt;
+        } finally {
+            lock.unlock();
+        }
+
+        CompletableFuture<R> attempt;
+        try {
+            attempt = supplier.get();
+        } catch (Throwable t) {
+            attempt = CompletableFuture.failedFuture(t);
+        }
+
+        attempt.whenComplete((r, e) -> onAttemptComplete(lane, item, r, e));
+    }
+
+    @SuppressWarnings("unchecked")
+    private <R> void onAttemptComplete(Lane lane, Item<R> item, R response, Throwable error) {
+        final var cause = error instanceof CompletionException && error.getCause() != null ?
+                error.getCause() : error;
+
+        lock.lock();
+        try {
+            lane.inFlight = false;
+            changed.signal();
+
+            if (running && cause instanceof TgRequestException e && e.getErrorCode() == TOO_MANY_REQUESTS) {
+                final var retryAfter = e.getRetryAfter() != null ? e.getRetryAfter() : 1;
+                log.warn("Flood limit reached for chat {}, retrying in {}s", lane.chatId, retryAfter);
+                lane.blocked = true;
+                lane.blockedUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(retryAfter);
+                activate(lane);
+
+                final var newer = item.coalesceKey != null ? (Item<R>) lane.coalescable.get(item.coalesceKey) : null;
+                if (newer == null || lane.items.peekFirst() != newer) {
+                    lane.items.addFirst(item);
+                    if (newer == null && item.coalesceKey != null)
+                        lane.coalescable.put(item.coalesceKey, item);
+
+                    return;
+                }
+
+                // A newer request with the same key is the next one, so there is no need to repeat this one
+                newer.result.whenComplete((r, newerError) -> {
+                    if (newerError != null) {
+                        item.result.completeExceptionally(newerError);
+                    } else {
+                        item.result.complete(r);
+                    }
+                });
+                queued.decrementAndGet();
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        queued.decrementAndGet();
+        if (cause != null) {
+            item.result.completeExceptionally(cause);
+        } else {
+            item.result.complete(response);
+        }
+    }
+
+    private static final class Item<R> {
+        private final Object coalesceKey;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+        private Supplier<CompletableFuture<R>> attempt;
+
+        private Item(Object coalesceKey, Supplier<CompletableFuture<R>> attempt) {
+            this.coalesceKey = coalesceKey;
+            this.attempt = attempt;
+        }
+    }
+
+    private static final class Lane {
+        private final Object chatId;
+        private final TokenBucket bucket;
+        private final ArrayDeque<Item<?>> items = new ArrayDeque<>();
+        private final HashMap<Object, Item<?>> coalescable = new HashMap<>();
+        private boolean active;
+        private boolean inFlight;
+        private boolean blocked;
+        private long blockedUntil;
+
+        private Lane(Object chatId, TokenBucket bucket) {
+            this.chatId = chatId;
+            this.bucket = bucket;
+        }
+    }
+
+    private record Sending(Lane lane, Item<?> item) { }
+}
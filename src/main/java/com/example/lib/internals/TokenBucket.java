@@ -0,0 +1,59 @@
+package com.example.lib.internals;
+
+import java.time.Duration;
+
+/**
+ * Classic token bucket: holds up to {@code capacity} tokens, one token is restored every {@code period / permits}.
+ * Not thread safe, time is passed in nanos from {@link System#nanoTime()}.
+ */
+public class TokenBucket {
+    private final int capacity;
+    private final long nanosPerToken;
+
+    private double tokens;
+    private long updatedAt;
+
+    public TokenBucket(int capacity, int permits, Duration period) {
+        if (capacity <= 0 || permits <= 0)
+            throw new IllegalArgumentException("Capacity and permits must be positive");
+
+        this.capacity = capacity;
+        this.nanosPerToken = Math.max(1, period.toNanos() / permits);
+        this.tokens = capacity;
+        this.updatedAt = System.nanoTime();
+    }
+
+    /**
+     * @return 0 if a token is available now, otherwise nanos to wait until it is
+     */
+    public long nanosUntilAvailable(long now) {
+        refill(now);
+        if (tokens >= 1)
+            return 0;
+
+        return (long) Math.ceil((1 - tokens) * nanosPerToken);
+    }
+
+    public boolean tryAcquire(long now) {
+        refill(now);
+        if (tokens < 1)
+            return false;
+
+        tokens -= 1;
+        return true;
+    }
+
+    public boolean isFull(long now) {
+        refill(now);
+        return tokens >= capacity;
+    }
+
+    private void refill(long now) {
+        final long elapsed = now - updatedAt;
+        if (elapsed <= 0)
+            return;
+
+        tokens = Math.min(capacity, tokens + (double) elapsed / nanosPerToken);
+        updatedAt = now;
+    }
+}
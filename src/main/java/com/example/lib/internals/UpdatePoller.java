@@ -0,0 +1,148 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.TelegramBot;
+import com.pengrad.telegrambot.model.Update;
+import com.pengrad.telegrambot.request.GetUpdates;
+import com.pengrad.telegrambot.response.GetUpdatesResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Long polling which doesn't wait for updates to be processed:
+ *  1. Updates of a batch are handed to the sink (usually a dispatch queue), and the next batch is requested
+ *     right after that, while the previous one is still being processed
+ *  2. If amount of pending updates reaches the high-water mark, polling is paused until it drops below it
+ *  3. Failed requests are retried with exponential backoff
+ * Updates are confirmed with the offset of the next request, so an update is confirmed only after the sink
+ * accepted it.
+ */
+public class UpdatePoller {
+    private static final Logger log = LoggerFactory.getLogger(UpdatePoller.class);
+
+    private static final long BACKPRESSURE_PAUSE_MILLIS = 20;
+    private static final long MIN_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+    private final TelegramBot telegramBot;
+    private final String[] allowedUpdates;
+    private final int limit;
+    private final int timeoutSeconds;
+    private final IntSupplier pending;
+    private final int highWater;
+    private final Predicate<Update> sink;
+
+    private Thread worker;
+    private volatile boolean running;
+    private int offset;
+
+    /**
+     * @param limit max amount of updates in a batch, 1-100
+     * @param timeoutSeconds long polling timeout, must be lower than read timeout of the http client
+     * @param pending amount of updates which are accepted by the sink, but not processed yet
+     * @param highWater polling is paused while amount of pending updates is at least this
+     * @param sink takes updates, returns false if the update couldn't be accepted for now and should be received
+     *             again. Updates which would never be accepted must be skipped by returning true, otherwise
+     *             polling stalls on them
+     */
+    public UpdatePoller(TelegramBot telegramBot, String[] allowedUpdates, int limit, int timeoutSeconds,
+                        IntSupplier pending, int highWater, Predicate<Update> sink) {
+
+        if (limit < 1 || limit > 100)
+            throw new IllegalArgumentException("Limit must be between 1 and 100");
+
+        if (timeoutSeconds < 0 || highWater <= 0)
+            throw new IllegalArgumentException("Timeout must not be negative and high-water mark must be positive");
+
+        this.telegramBot = telegramBot;
+        this.allowedUpdates = allowedUpdates;
+        this.limit = limit;
+        this.timeoutSeconds = timeoutSeconds;
+        this.pending = pending;
+        this.highWater = highWater;
+        this.sink = sink;
+    }
+
+    public synchronized void start() {
+        if (worker != null)
+            throw new IllegalStateException("Poller is already started");
+
+        running = true;
+        worker = new Thread(this::run, "tg-update-poller");
+        worker.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+    }
+
+    private void run() {
+        long backoff = MIN_BACKOFF_MILLIS;
+        try {
+            while (running) {
+                while (pending.getAsInt() >= highWater)
+                    Thread.sleep(BACKPRESSURE_PAUSE_MILLIS);
+
+                if (!poll()) {
+                    Thread.sleep(backoff);
+                    backoff = Math.min(backoff * 2, MAX_BACKOFF_MILLIS);
+                } else {
+                    backoff = MIN_BACKOFF_MILLIS;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        log.info("Update polling is stopped");
+    }
+
+    /*
+     * @return false if updates couldn't be received
+     */
+    private boolean poll() throws InterruptedException {
+        final var request = new GetUpdates()
+                .offset(offset)
+                .limit(limit)
+                .timeout(timeoutSeconds)
+                .allowedUpdates(allowedUpdates);
+
+        final GetUpdatesResponse response;
+        try {
+            response = telegramBot.execute(request);
+        } catch (RuntimeException e) {
+            if (!running)
+                return true;
+
+            log.error("Unable to receive updates", e);
+            return false;
+        }
+
+        if (response == null || !response.isOk() || response.updates() == null) {
+            log.error("Unable to receive updates: {} {}",
+                    response != null ? response.errorCode() : null, response != null ? response.description() : null);
+            return false;
+        }
+
+        for (var update : response.updates()) {
+            if (!sink.test(update)) {
+                if (Thread.currentThread().isInterrupted())
+                    throw new InterruptedException();
+
+                // The rest of the batch will be received again with the same offset
+                return false;
+            }
+
+            offset = update.updateId() + 1;
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.Update;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Predicate;
+
+/**
+ * Receives updates pushed by telegram to a webhook:
+ *  1. Requests without the expected {@code X-Telegram-Bot-Api-Secret-Token} header are rejected
+ *  2. Update is parsed straight from the request body and passed to the sink
+ *  3. Request is acknowledged as soon as the sink accepts the update, before it's processed. If the sink
+ *     can't accept the update for now, telegram gets 503 and delivers the update again later. Failures which
+ *     would repeat on redelivery are logged and acknowledged, so they don't block the next updates
+ */
+public class WebhookServer {
+    private static final Logger log = LoggerFactory.getLogger(WebhookServer.class);
+
+    public static final String SECRET_TOKEN_HEADER = "X-Telegram-Bot-Api-Secret-Token";
+    private static final long MAX_BODY_SIZE = 1 << 20;
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final byte[] secretToken;
+    private final Predicate<Update> sink;
+
+    /**
+     * @param secretToken nullable, if null requests aren't authenticated
+     * @param sink takes parsed updates, returns false if the update couldn't be accepted for now
+     */
+    public WebhookServer(InetSocketAddress address, String path, String secretToken, Predicate<Update> sink)
+            throws IOException {
+
+        this.secretToken = secretToken != null ? secretToken.getBytes(StandardCharsets.UTF_8) : null;
+        this.sink = sink;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.server = HttpServer.create(address, 0);
+        this.server.setExecutor(executor);
+        this.server.createContext(path, this::handle);
+    }
+
+    public void start() {
+        server.start();
+        log.info("Listening for webhook updates on {}", server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdown();
+    }
+
+    public InetSocketAddress getAddress() {
+        return server.getAddress();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+
+            if (!isAuthorized(exchange.getRequestHeaders().getFirst(SECRET_TOKEN_HEADER))) {
+                log.warn("Webhook request from {} has wrong secret token", exchange.getRemoteAddress());
+                exchange.sendResponseHeaders(401, -1);
+                return;
+            }
+
+            final var contentLength = exchange.getRequestHeaders().getFirst("Content-Length");
+            if (contentLength != null && parseLength(contentLength) > MAX_BODY_SIZE) {
+                exchange.sendResponseHeaders(413, -1);
+                return;
+            }
+
+            final Update update;
+            try {
+                final var body = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8);
+                update = BotUtils.parseUpdate(body);
+            } catch (RuntimeException e) {
+                log.warn("Unable to parse webhook update", e);
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            if (update == null) {
+                exchange.sendResponseHeaders(400, -1);
+                return;
+            }
+
+            boolean accepted;
+            try {
+                accepted = sink.test(update);
+            } catch (RuntimeException e) {
+                log.error("Unable to handle webhook update {}, the update is skipped", update.updateId(), e);
+                accepted = true;
+            }
+
+            exchange.sendResponseHeaders(accepted ? 200 : 503, -1);
+        }
+    }
+
+    /*
+     * Constant time comparison, so the token couldn't be guessed by response timings
+     */
+    private boolean isAuthorized(String token) {
+        if (secretToken == null)
+            return true;
+
+        return token != null && MessageDigest.isEqual(secretToken, token.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static long parseLength(String contentLength) {
+        try {
+            return Long.parseLong(contentLength.trim());
+        } catch (NumberFormatException e) {
+            return Long.MAX_VALUE;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.example.lib.menu;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Legacy encoding, payload is stored as standard Base64. Uses 4 characters per 3 bytes.
+ */
+public class Base64CallbackCodec implements CallbackCodec {
+    @Override
+    public void encode(byte[] payload, int offset, int length, StringBuilder target) {
+        final var encoded = Base64.getEncoder().encode(
+                offset == 0 && length == payload.length ? payload :
+                        Arrays.copyOfRange(payload, offset, offset + length));
+        target.append(new String(encoded, StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public int decode(CharSequence data, int from, int to, byte[] target) {
+        final var decoded = Base64.getDecoder().decode(
+                data.subSequence(from, to).toString().getBytes(StandardCharsets.ISO_8859_1));
+        if (decoded.length > target.length)
+            throw new IllegalArgumentException("Payload doesn't fit the buffer");
+
+        System.arraycopy(decoded, 0, target, 0, decoded.length);
+        return decoded.length;
+    }
+}
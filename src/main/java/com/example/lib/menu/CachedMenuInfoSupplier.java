@@ -0,0 +1,55 @@
+package com.example.lib.menu;
+
+import com.example.lib.TgChat;
+import com.example.lib.context.InteractiveMessageContext;
+
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Menu which is rendered once per locale and then reused by all chats with the same locale.
+ * Suits static menus only: {@link #create} isn't invoked for cached locales, so the menu must not depend on
+ * the chat or message context, and must not change the context. Buttons are always rendered with null context,
+ * so the cached keyboard is the same for new and edited messages. Call {@link #invalidate()} when the menu changes.
+ */
+public abstract class CachedMenuInfoSupplier extends MenuInfoSupplier {
+    private final ConcurrentHashMap<Locale, CompletableFuture<RenderedMenu>> rendered = new ConcurrentHashMap<>();
+
+    @Override
+    public CompletableFuture<RenderedMenu> render(TgChat targetChat, InteractiveMessageContext context,
+                                                  InteractiveMessageContext buttonContext) {
+        final var locale = targetChat.vocabulary.getLocale();
+        final var cached = rendered.get(locale);
+        if (cached != null)
+            return cached;
+
+        // Concurrent renders of the same locale share a single future, failed ones aren't cached
+        final var future = new CompletableFuture<RenderedMenu>();
+        final var existing = rendered.putIfAbsent(locale, future);
+        if (existing != null)
+            return existing;
+
+        super.render(targetChat, context, null).whenComplete((menu, error) -> {
+            if (error != null) {
+                rendered.remove(locale, future);
+                future.completeExceptionally(error);
+            } else {
+                future.complete(menu);
+            }
+        });
+
+        return future;
+    }
+
+    /**
+     * Drops rendered menus of all locales
+     */
+    public void invalidate() {
+        rendered.clear();
+    }
+
+    public void invalidate(Locale locale) {
+        rendered.remove(locale);
+    }
+}
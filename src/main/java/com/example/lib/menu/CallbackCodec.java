@@ -0,0 +1,19 @@
+package com.example.lib.menu;
+
+/**
+ * Turns callback payload bytes into characters of telegram callback data and back.
+ * Encoded payload goes after tag and {@link CallbackReference#TAG_PAYLOAD_SPLIT_STRING}.
+ */
+public interface CallbackCodec {
+    /**
+     * Appends encoded bytes to the target
+     */
+    void encode(byte[] payload, int offset, int length, StringBuilder target);
+
+    /**
+     * Decodes characters {@code [from, to)} of the data into the target array
+     * @return amount of decoded bytes
+     * @throws IllegalArgumentException if data couldn't be decoded or doesn't fit the target
+     */
+    int decode(CharSequence data, int from, int to, byte[] target);
+}
@@ -0,0 +1,151 @@
+package com.example.lib.menu;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Typed descriptor of a value stored in callback payload. Values are read back in the same order
+ * they were written to {@link CallbackReference#with}.
+ * Var-length fields take 1 byte for small numbers, so they're preferred for ids and indexes.
+ */
+public abstract class CallbackField<T> {
+    public static final CallbackField<Byte> BYTE = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Byte value) {
+            target.put(value);
+        }
+
+        @Override
+        public Byte read(ByteBuffer source) {
+            return source.get();
+        }
+    };
+
+    public static final CallbackField<Boolean> BOOLEAN = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Boolean value) {
+            target.put((byte) (value ? 1 : 0));
+        }
+
+        @Override
+        public Boolean read(ByteBuffer source) {
+            return source.get() != 0;
+        }
+    };
+
+    public static final CallbackField<Short> SHORT = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Short value) {
+            target.putShort(value);
+        }
+
+        @Override
+        public Short read(ByteBuffer source) {
+            return source.getShort();
+        }
+    };
+
+    public static final CallbackField<Integer> INT = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Integer value) {
+            target.putInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer source) {
+            return source.getInt();
+        }
+    };
+
+    public static final CallbackField<Long> LONG = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Long value) {
+            target.putLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer source) {
+            return source.getLong();
+        }
+    };
+
+    /**
+     * Zigzag var-length int: from 1 byte for [-64, 63] up to 5 bytes
+     */
+    public static final CallbackField<Integer> VAR_INT = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Integer value) {
+            writeVarLong(target, Integer.toUnsignedLong((value << 1) ^ (value >> 31)));
+        }
+
+        @Override
+        public Integer read(ByteBuffer source) {
+            final int raw = (int) readVarLong(source);
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+    };
+
+    /**
+     * Zigzag var-length long: from 1 byte for [-64, 63] up to 10 bytes
+     */
+    public static final CallbackField<Long> VAR_LONG = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, Long value) {
+            writeVarLong(target, (value << 1) ^ (value >> 63));
+        }
+
+        @Override
+        public Long read(ByteBuffer source) {
+            final long raw = readVarLong(source);
+            return (raw >>> 1) ^ -(raw & 1);
+        }
+    };
+
+    /**
+     * UTF-8 string prefixed with var-length byte count
+     */
+    public static final CallbackField<String> STRING = new CallbackField<>() {
+        @Override
+        public void write(ByteBuffer target, String value) {
+            final var bytes = value.getBytes(StandardCharsets.UTF_8);
+            writeVarLong(target, bytes.length);
+            target.put(bytes);
+        }
+
+        @Override
+        public String read(ByteBuffer source) {
+            final int length = (int) readVarLong(source);
+            if (length > source.remaining())
+                throw new IllegalArgumentException("String length exceeds payload");
+
+            final var bytes = new byte[length];
+            source.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    };
+
+    public abstract void write(ByteBuffer target, T value);
+
+    public abstract T read(ByteBuffer source);
+
+    private static void writeVarLong(ByteBuffer target, long value) {
+        while ((value & ~0x7FL) != 0) {
+            target.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+
+        target.put((byte) value);
+    }
+
+    private static long readVarLong(ByteBuffer source) {
+        long result = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            final byte b = source.get();
+            result |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+
+        throw new IllegalArgumentException("Malformed var-length number");
+    }
+}
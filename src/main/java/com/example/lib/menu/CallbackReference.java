@@ -2,62 +2,140 @@ package com.example.lib.menu;
 
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.Base64;
+import java.util.Arrays;
 
 public class CallbackReference {
     public static final String TAG_PAYLOAD_SPLIT_STRING = "%";
+    public static final char TAG_PAYLOAD_SPLIT_CHAR = '%';
     public static final int TG_CALLBACK_DATA_SIZE_LIMIT = 64;
 
+    private static final byte[] EMPTY = new byte[0];
+    private static final ThreadLocal<ByteBuffer> payloadBuffer =
+            ThreadLocal.withInitial(() -> ByteBuffer.allocate(TG_CALLBACK_DATA_SIZE_LIMIT));
+    private static final ThreadLocal<StringBuilder> dataBuilder =
+            ThreadLocal.withInitial(() -> new StringBuilder(TG_CALLBACK_DATA_SIZE_LIMIT));
+
+    private static volatile CallbackCodec codec = new DenseCallbackCodec();
+
     public final String tag;
 
-    private final ByteBuffer payload = ByteBuffer.allocate(TG_CALLBACK_DATA_SIZE_LIMIT);
+    private final byte[] payload;
+
+    private String callbackData;
+    private CallbackCodec callbackDataCodec;
 
     public CallbackReference(String tag) {
+        this(tag, EMPTY);
+    }
+
+    protected CallbackReference(String tag, byte[] payload) {
         this.tag = tag;
+        this.payload = payload;
+    }
+
+    public static CallbackCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Codec used to put payload to callback data of all buttons. Changing it makes buttons which are already sent
+     * unreadable, so it should be done before the bot starts. The default {@link DenseCallbackCodec} still reads
+     * buttons encoded with {@link Base64CallbackCodec}, which was used before.
+     */
+    public static void setCodec(CallbackCodec codec) {
+        CallbackReference.codec = codec;
     }
 
     public String toTelegramCallbackData() {
-        final var callbackData =
-                tag + TAG_PAYLOAD_SPLIT_STRING +
-                new String(
-                        Base64.getEncoder().encode(
-                                // Changing bytebuffer size to amount of filled bytes
-                                ByteBuffer.allocate(payload.position())
-                                        .put(payload.array(), 0, payload.position())
-                                        .array()
-                        ),
-                        StandardCharsets.UTF_8
-                );
-
-        if (callbackData.length() >= TG_CALLBACK_DATA_SIZE_LIMIT)
+        // References are immutable, so callback data is encoded once
+        final var currentCodec = codec;
+        if (callbackData != null && callbackDataCodec == currentCodec)
+            return callbackData;
+
+        final var sb = dataBuilder.get();
+        sb.setLength(0);
+        sb.append(tag).append(TAG_PAYLOAD_SPLIT_CHAR);
+        currentCodec.encode(payload, 0, payload.length, sb);
+
+        if (utf8Length(sb) > TG_CALLBACK_DATA_SIZE_LIMIT)
             throw new RuntimeException("This callback reference couldn't be applied to an inline button due to " +
                     "telegram callback data limits. Use less payload or either make tag shorter");
 
-        return callbackData;
+        final var result = sb.toString();
+        callbackData = result;
+        callbackDataCodec = currentCodec;
+        return result;
+    }
+
+    /**
+     * @return copy of the raw payload
+     */
+    public byte[] getPayload() {
+        return payload.clone();
     }
 
     @SafeVarargs
     public final <T extends Number> CallbackReference withPayload(T... payload) {
-        final var newRef = new CallbackReference(tag);
-
+        final var buffer = startPayload(false);
         for (T t : payload) {
             switch (t) {
-                case Integer i -> newRef.payload.putInt(i);
-                case Long l    -> newRef.payload.putLong(l);
-                case Double d  -> newRef.payload.putDouble(d);
-                case Float f   -> newRef.payload.putFloat(f);
-                case Short s   -> newRef.payload.putShort(s);
-                case Byte b    -> newRef.payload.put(b);
+                case Integer i -> buffer.putInt(i);
+                case Long l    -> buffer.putLong(l);
+                case Double d  -> buffer.putDouble(d);
+                case Float f   -> buffer.putFloat(f);
+                case Short s   -> buffer.putShort(s);
+                case Byte b    -> buffer.put(b);
                 case null, default -> throw new RuntimeException("Current type couldn't be written to a ByteBuffer");
             }
         }
 
-        return newRef;
+        return new CallbackReference(tag, finishPayload(buffer));
     }
 
     public final CallbackReference withPayload(String payload) {
-        final var newRef = new CallbackReference(tag);
-        newRef.payload.put(payload.getBytes(StandardCharsets.UTF_8));
-        return newRef;
+        final var buffer = startPayload(false);
+        buffer.put(payload.getBytes(StandardCharsets.UTF_8));
+        return new CallbackReference(tag, finishPayload(buffer));
+    }
+
+    /**
+     * Appends a typed value to the payload, see {@link CallbackField} for available types.
+     * Unlike {@code withPayload}, keeps values which are already in the payload.
+     */
+    public final <T> CallbackReference with(CallbackField<T> field, T value) {
+        final var buffer = startPayload(true);
+        field.write(buffer, value);
+        return new CallbackReference(tag, finishPayload(buffer));
+    }
+
+    private ByteBuffer startPayload(boolean keepCurrent) {
+        final var buffer = payloadBuffer.get().clear();
+        if (keepCurrent)
+            buffer.put(payload);
+
+        return buffer;
+    }
+
+    private static byte[] finishPayload(ByteBuffer buffer) {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static int utf8Length(CharSequence sequence) {
+        int length = 0;
+        for (int i = 0; i < sequence.length(); i++) {
+            final char ch = sequence.charAt(i);
+            if (ch < 0x80) {
+                length++;
+            } else if (ch < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(ch)) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+
+        return length;
     }
 }
@@ -0,0 +1,91 @@
+package com.example.lib.menu;
+
+import java.util.Arrays;
+
+/**
+ * Packs payload in base-85 using printable ASCII only:
+ *  1. Every 4 bytes are written as 5 characters, a trailing group of n bytes as n + 1 characters,
+ *     so it uses ~5 bytes of callback data per 4 bytes of payload, Base64 uses 4 per 3 plus padding
+ *  2. The alphabet is printable ASCII except {@code % " ' \ ` < > & ;}, so the data never needs escaping
+ *     and never contains {@link CallbackReference#TAG_PAYLOAD_SPLIT_CHAR}
+ *  3. Non-empty payload starts with {@link #VERSION}, which isn't a Base64 character. Data without it is decoded
+ *     as {@link Base64CallbackCodec} did, so buttons sent before the codec was switched keep working
+ */
+public class DenseCallbackCodec implements CallbackCodec {
+    public static final char VERSION = '!';
+
+    private static final String ALPHABET =
+            "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ.-:+=^!/*?()[]{}@$#|~,_";
+    private static final int BASE = 85;
+    private static final byte[] DIGITS = new byte[128];
+
+    static {
+        Arrays.fill(DIGITS, (byte) -1);
+        for (int i = 0; i < ALPHABET.length(); i++)
+            DIGITS[ALPHABET.charAt(i)] = (byte) i;
+    }
+
+    private final Base64CallbackCodec legacy = new Base64CallbackCodec();
+
+    @Override
+    public void encode(byte[] payload, int offset, int length, StringBuilder target) {
+        if (length == 0)
+            return;
+
+        target.append(VERSION);
+        final char[] group = new char[5];
+        for (int i = offset; i < offset + length; i += 4) {
+            final int bytes = Math.min(4, offset + length - i);
+            long value = 0;
+            for (int k = 0; k < 4; k++)
+                value = (value << 8) | (k < bytes ? payload[i + k] & 0xFF : 0);
+
+            for (int k = 4; k >= 0; k--) {
+                group[k] = ALPHABET.charAt((int) (value % BASE));
+                value /= BASE;
+            }
+
+            target.append(group, 0, bytes + 1);
+        }
+    }
+
+    @Override
+    public int decode(CharSequence data, int from, int to, byte[] target) {
+        if (from == to)
+            return 0;
+
+        if (data.charAt(from) != VERSION)
+            return legacy.decode(data, from, to, target);
+
+        int length = 0;
+        for (int i = from + 1; i < to; i += 5) {
+            final int chars = Math.min(5, to - i);
+            if (chars == 1)
+                throw new IllegalArgumentException("Truncated callback data");
+
+            // Missing characters of the last group are the highest digit, so dropped bytes don't carry into kept ones
+            long value = 0;
+            for (int k = 0; k < 5; k++)
+                value = value * BASE + (k < chars ? digit(data.charAt(i + k)) : BASE - 1);
+
+            if (value > 0xFFFFFFFFL)
+                throw new IllegalArgumentException("Malformed callback data");
+
+            if (length + chars - 1 > target.length)
+                throw new IllegalArgumentException("Payload doesn't fit the buffer");
+
+            for (int k = 0; k < chars - 1; k++)
+                target[length++] = (byte) (value >>> (24 - 8 * k));
+        }
+
+        return length;
+    }
+
+    private static int digit(char ch) {
+        final int digit = ch < DIGITS.length ? DIGITS[ch] : -1;
+        if (digit < 0)
+            throw new IllegalArgumentException("Unexpected character in callback data: " + (int) ch);
+
+        return digit;
+    }
+}
@@ -1,6 +1,9 @@
 package com.example.lib.menu;
 
+import com.example.lib.context.InteractiveMessageContext;
 import com.example.lib.menu.button.MenuButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
 
 import java.util.List;
 
@@ -21,6 +24,24 @@ public class MenuInfo {
         return buttons;
     }
 
+    /**
+     * Builds the message and inline keyboard which are sent to telegram
+     * @param context nullable
+     */
+    public RenderedMenu render(InteractiveMessageContext context) {
+        final var markup = new InlineKeyboardMarkup();
+        for (var row : buttons) {
+            final var inlineRow = new InlineKeyboardButton[row.size()];
+            int i = 0;
+            for (var button : row)
+                inlineRow[i++] = button.getInlineKeyboardButton(context);
+
+            markup.addRow(inlineRow);
+        }
+
+        return new RenderedMenu(message, markup);
+    }
+
     public static MenuInfo of(String message, List<List<MenuButton>> buttons) {
         return new MenuInfo(message, buttons);
     }
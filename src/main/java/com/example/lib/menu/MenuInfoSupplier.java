@@ -4,6 +4,7 @@ import com.example.lib.TgChat;
 import com.example.lib.context.InteractiveMessageContext;
 import com.example.lib.menu.button.MenuButton;
 
+import java.time.Duration;
 import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
@@ -13,6 +14,31 @@ public abstract class MenuInfoSupplier {
     public abstract CompletableFuture<MenuInfo> create(
             TgChat targetChat, InteractiveMessageContext context);
 
+    /**
+     * Max time the menu could be created for, after that the user receives an error instead of the menu.
+     * @return nullable, null means the default timeout of the bot
+     */
+    public Duration getTimeout() {
+        return null;
+    }
+
+    /**
+     * Creates the menu and builds its message and keyboard, buttons receive the same context
+     */
+    public CompletableFuture<RenderedMenu> render(TgChat targetChat, InteractiveMessageContext context) {
+        return render(targetChat, context, context);
+    }
+
+    /**
+     * Creates the menu and builds its message and keyboard
+     * @param buttonContext nullable, context passed to buttons. It's null when the menu is sent as a new message,
+     *                      since the message has no context of its own until it's sent
+     */
+    public CompletableFuture<RenderedMenu> render(TgChat targetChat, InteractiveMessageContext context,
+                                                  InteractiveMessageContext buttonContext) {
+        return create(targetChat, context).thenApply(menuInfo -> menuInfo.render(buttonContext));
+    }
+
     protected static final class ButtonLayoutBuilder {
         private final LinkedList<LinkedList<MenuButton>> layout = new LinkedList<>();
 
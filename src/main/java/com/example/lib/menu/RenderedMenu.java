@@ -0,0 +1,53 @@
+package com.example.lib.menu;
+
+import com.pengrad.telegrambot.BotUtils;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+
+import java.util.Objects;
+
+/**
+ * Menu in the form it's sent to telegram. Could be shared by many messages, so it must not be modified.
+ * Hashes are computed once when the menu is created, so comparing menus is cheap, and a hash match is confirmed
+ * by comparing the text and the keyboard itself.
+ */
+public final class RenderedMenu {
+    public final String message;
+    public final InlineKeyboardMarkup markup;
+
+    // Keyboard as it's sent to telegram, so any change of a button changes it
+    private final String markupJson;
+    private final int textHash;
+    private final int markupHash;
+
+    public RenderedMenu(String message, InlineKeyboardMarkup markup) {
+        this.message = message;
+        this.markup = markup;
+        this.markupJson = markup != null ? BotUtils.toJson(markup) : null;
+        this.textHash = Objects.hashCode(message);
+        this.markupHash = Objects.hashCode(markupJson);
+    }
+
+    public int getTextHash() {
+        return textHash;
+    }
+
+    public int getMarkupHash() {
+        return markupHash;
+    }
+
+    /**
+     * @param other nullable
+     */
+    public boolean hasSameText(RenderedMenu other) {
+        return other != null && (other == this ||
+                textHash == other.textHash && Objects.equals(message, other.message));
+    }
+
+    /**
+     * @param other nullable
+     */
+    public boolean hasSameMarkup(RenderedMenu other) {
+        return other != null && (other == this ||
+                markupHash == other.markupHash && Objects.equals(markupJson, other.markupJson));
+    }
+}
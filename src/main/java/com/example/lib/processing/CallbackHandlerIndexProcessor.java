@@ -0,0 +1,115 @@
+package com.example.lib.processing;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Collects all concrete subclasses of {@code CallbackHandler} being compiled and lists their binary names
+ * in {@value #INDEX_RESOURCE}, so handlers could be registered on startup without classpath scanning.
+ * <p>
+ * The processor is registered as a service of this jar and is picked up by javac automatically when the library
+ * is on the compile classpath. Since JDK 23 annotation processing has to be enabled explicitly, e.g. with
+ * {@code -proc:full} or by adding this library to {@code annotationProcessorPaths}.
+ */
+@SupportedAnnotationTypes("*")
+public class CallbackHandlerIndexProcessor extends AbstractProcessor {
+    public static final String INDEX_RESOURCE = "META-INF/jtglib/callback-handlers";
+
+    private static final String CALLBACK_HANDLER_CLASS = "com.example.lib.internals.CallbackHandler";
+
+    private final Set<String> handlers = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        final var callbackHandler = processingEnv.getElementUtils().getTypeElement(CALLBACK_HANDLER_CLASS);
+        if (callbackHandler == null)
+            return false;
+
+        if (roundEnv.processingOver()) {
+            writeIndex();
+            return false;
+        }
+
+        final var handlerType = processingEnv.getTypeUtils().erasure(callbackHandler.asType());
+        for (var element : roundEnv.getRootElements())
+            collect(element, handlerType);
+
+        return false;
+    }
+
+    private void collect(Element element, TypeMirror handlerType) {
+        if (element.getKind() != ElementKind.CLASS)
+            return;
+
+        final var type = (TypeElement) element;
+        final var modifiers = type.getModifiers();
+        final boolean nested = type.getEnclosingElement().getKind() != ElementKind.PACKAGE;
+        if (!modifiers.contains(Modifier.ABSTRACT) && (!nested || modifiers.contains(Modifier.STATIC)) &&
+                processingEnv.getTypeUtils().isAssignable(type.asType(), handlerType) &&
+                !type.getQualifiedName().contentEquals(CALLBACK_HANDLER_CLASS)) {
+
+            handlers.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+        }
+
+        for (var enclosed : type.getEnclosedElements())
+            collect(enclosed, handlerType);
+    }
+
+    private void writeIndex() {
+        // Incremental builds compile only changed sources, so entries of the previous index are kept
+        // as long as their classes still exist
+        final var filer = processingEnv.getFiler();
+        try {
+            final FileObject existing = filer.getResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+            try (var reader = new BufferedReader(
+                    new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))) {
+
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    line = line.trim();
+                    if (!line.isEmpty() && processingEnv.getElementUtils().getTypeElement(line.replace('$', '.')) != null)
+                        handlers.add(line);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            // There is no index yet
+        }
+
+        if (handlers.isEmpty())
+            return;
+
+        try {
+            final var resource = filer.createResource(StandardLocation.CLASS_OUTPUT, "", INDEX_RESOURCE);
+            try (Writer writer = new OutputStreamWriter(resource.openOutputStream(), StandardCharsets.UTF_8)) {
+                for (var handler : handlers)
+                    writer.write(handler + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR,
+                    "Unable to write callback handler index: " + e.getMessage());
+        }
+    }
+}
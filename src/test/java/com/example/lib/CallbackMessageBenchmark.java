@@ -0,0 +1,59 @@
+package com.example.lib;
+
+import com.pengrad.telegrambot.model.CallbackQuery;
+import com.pengrad.telegrambot.model.Message;
+import com.pengrad.telegrambot.model.message.MaybeInaccessibleMessage;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Field;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares reading the message of a callback query in {@link TgBot} before and after reflection was dropped:
+ *  1. reflection - the private field is looked up and made accessible for every query, as it was done before
+ *  2. accessor - {@link CallbackQuery#maybeInaccessibleMessage()}
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=CallbackMessageBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallbackMessageBenchmark {
+    private CallbackQuery query;
+
+    @Setup
+    public void setUp() throws ReflectiveOperationException {
+        // Queries are only created by deserialization, so the message is put the same way the old code read it
+        query = new CallbackQuery();
+        final Field field = CallbackQuery.class.getDeclaredField("message");
+        field.setAccessible(true);
+        field.set(query, new Message());
+    }
+
+    @Benchmark
+    public void reflection(Blackhole blackhole) {
+        try {
+            final Field f = query.getClass().getDeclaredField("message");
+            if (f.canAccess(query) || f.trySetAccessible()) {
+                final MaybeInaccessibleMessage message = (MaybeInaccessibleMessage) f.get(query);
+                blackhole.consume(message.chat());
+                blackhole.consume(message.messageId());
+            } else throw new RuntimeException("Unable to extract chat from query: " + query);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Benchmark
+    public void accessor(Blackhole blackhole) {
+        final MaybeInaccessibleMessage message = query.maybeInaccessibleMessage();
+        if (message == null)
+            throw new RuntimeException("Unable to extract chat from query: " + query);
+
+        blackhole.consume(message.chat());
+        blackhole.consume(message.messageId());
+    }
+}
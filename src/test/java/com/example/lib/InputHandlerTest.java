@@ -0,0 +1,60 @@
+package com.example.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InputHandlerTest {
+    @Test
+    void downloadIsStartedOnce() {
+        final var source = new CountingSource(0);
+        final var attachment = attachment(source);
+
+        final var first = attachment.download();
+        assertSame(first, attachment.download());
+        assertArrayEquals(new byte[]{1, 2, 3}, attachment.data());
+        assertEquals(1, source.downloads.get());
+    }
+
+    @Test
+    void failedDownloadIsRetried() {
+        final var source = new CountingSource(1);
+        final var attachment = attachment(source);
+
+        assertTrue(attachment.download().isCompletedExceptionally());
+        assertArrayEquals(new byte[]{1, 2, 3}, attachment.data());
+        assertArrayEquals(new byte[]{1, 2, 3}, attachment.data());
+        assertEquals(2, source.downloads.get());
+    }
+
+    private static InputHandler.Attachment attachment(InputHandler.FileSource source) {
+        return new InputHandler.Attachment(false, false, "file", "unique", 3L, "image/png", source);
+    }
+
+    private static final class CountingSource implements InputHandler.FileSource {
+        private final AtomicInteger downloads = new AtomicInteger();
+        private final int failures;
+
+        private CountingSource(int failures) {
+            this.failures = failures;
+        }
+
+        @Override
+        public CompletableFuture<byte[]> download(InputHandler.Attachment attachment) {
+            if (downloads.incrementAndGet() <= failures)
+                return CompletableFuture.failedFuture(new IOException("Connection reset"));
+
+            return CompletableFuture.completedFuture(new byte[]{1, 2, 3});
+        }
+
+        @Override
+        public InputStream open(InputHandler.Attachment attachment) {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
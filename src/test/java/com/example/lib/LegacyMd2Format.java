@@ -0,0 +1,23 @@
+package com.example.lib;
+
+import java.util.List;
+
+/**
+ * MarkdownV2 escaping which was used by the bot before {@link Utils#tgMd2Format(String)} was rewritten,
+ * kept as is to check that the new one produces the same output and to compare their speed.
+ */
+final class LegacyMd2Format {
+    private LegacyMd2Format() { }
+
+    static String format(String message) {
+        if (message == null)
+            return "";
+
+        final var toEscape = List.of('_', '*', '[', ']', '(', ')', '~', '`', '>', '#', '+', '-', '=', '|',
+                '{', '}', '.', '!');
+        for (char ch : toEscape)
+            message = message.replace(ch + "", "\\" + ch);
+
+        return message;
+    }
+}
@@ -0,0 +1,44 @@
+package com.example.lib;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link Utils#tgMd2Format(String)} with the escaping it replaced:
+ *  1. plain - a short message with nothing to escape
+ *  2. short - a short message with a few special characters
+ *  3. long - about 1.5 KB of text with punctuation in every sentence
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=Md2FormatBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Md2FormatBenchmark {
+    @Param({"plain", "short", "long"})
+    public String message;
+
+    private String text;
+
+    @Setup
+    public void setUp() {
+        text = switch (message) {
+            case "plain" -> "Hello, world";
+            case "short" -> "Hello, world! Press *Menu*.";
+            default -> "Your balance is 1,234.56 (updated). Press *Menu* to continue - or /help. ".repeat(20);
+        };
+    }
+
+    @Benchmark
+    public String legacy() {
+        return LegacyMd2Format.format(text);
+    }
+
+    @Benchmark
+    public String current() {
+        return Utils.tgMd2Format(text);
+    }
+}
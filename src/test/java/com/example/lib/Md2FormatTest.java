@@ -0,0 +1,72 @@
+package com.example.lib;
+
+import org.example.lib.Vocabulary;
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class Md2FormatTest {
+    private static final String SPECIAL = "_*[]()~`>#+-=|{}.!";
+
+    @Test
+    void everySpecialCharacterIsEscaped() {
+        for (char ch : SPECIAL.toCharArray())
+            assertSameOutput("a" + ch + "b");
+
+        assertSameOutput(SPECIAL);
+        assertSameOutput(SPECIAL + SPECIAL);
+    }
+
+    @Test
+    void regularTextIsNotCopied() {
+        final var text = "Hello, world: 42 é 😀 \\ / % $ @ ' \"";
+        assertSameOutput(text);
+        assertSame(text, Utils.tgMd2Format(text));
+    }
+
+    @Test
+    void edges() {
+        assertSameOutput(null);
+        assertSameOutput("");
+        assertSameOutput(".");
+        assertSameOutput(".starts and ends!");
+        assertSameOutput("already \\. escaped");
+        assertSameOutput("\u0080ÿ￿..");
+    }
+
+    @Test
+    void randomCorpus() {
+        final var random = new Random(42);
+        final var alphabet = SPECIAL + "\\ab é\n";
+        for (int i = 0; i < 100_000; i++) {
+            final var sb = new StringBuilder();
+            final int length = random.nextInt(40);
+            for (int k = 0; k < length; k++)
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+
+            assertSameOutput(sb.toString());
+        }
+    }
+
+    @Test
+    void vocabularyEscapesOnce() {
+        final var vocabulary = Vocabulary.make(Locale.US);
+        for (var key : new String[]{"core.helpMessage", "core.internalError", "core.rottenMenu", "missing.key"}) {
+            assertEquals(LegacyMd2Format.format(vocabulary.get(key)), vocabulary.getMd2(key), key);
+            assertSame(vocabulary.getMd2(key), vocabulary.getMd2(key));
+        }
+    }
+
+    @Test
+    void templateEscapesMarkdownArguments() {
+        final var template = Vocabulary.Template.compile("Hi {0,md}, {1}!");
+        assertEquals("Hi " + LegacyMd2Format.format("*john_doe*") + ", *raw*!", template.format("*john_doe*", "*raw*"));
+    }
+
+    private static void assertSameOutput(String text) {
+        assertEquals(LegacyMd2Format.format(text), Utils.tgMd2Format(text), text);
+    }
+}
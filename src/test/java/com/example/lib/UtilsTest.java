@@ -0,0 +1,80 @@
+package com.example.lib;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UtilsTest {
+    @Test
+    void readableNumbers() {
+        assertEquals("1,032,413", Utils.optimizeReadability(1032412.54512232));
+        assertEquals("4,003.46", Utils.optimizeReadability(4003.45512));
+        assertEquals("23.020", Utils.optimizeReadability(23.02));
+        assertEquals(".1250000", Utils.optimizeReadability(0.125));
+        assertEquals("-2.500", Utils.optimizeReadability(-2.5));
+    }
+
+    /*
+     * Shared formatters must give the same output under contention, ties and huge numbers included,
+     * since they are formatted by DecimalFormat copies shared between threads
+     */
+    @Test
+    void sharedFormattersUnderContention() throws Exception {
+        final var random = new Random(42);
+        final var numbers = new double[4096];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = switch (i % 4) {
+                case 0 -> (random.nextInt(100_000) + 0.5) / 100;
+                case 1 -> (random.nextInt(1000) + 0.5) / 10_000;
+                case 2 -> random.nextDouble() * 1.0E22;
+                default -> (random.nextDouble() - 0.5) * 100_000;
+            };
+        }
+
+        final var expected = new String[numbers.length];
+        for (int i = 0; i < numbers.length; i++)
+            expected[i] = Utils.optimizeReadability(numbers[i]);
+
+        final var mismatches = new AtomicInteger();
+        final var start = new CountDownLatch(1);
+        final List<Future<?>> tasks = new ArrayList<>();
+        try (var platform = Executors.newFixedThreadPool(8);
+             var virtual = Executors.newVirtualThreadPerTaskExecutor()) {
+
+            for (int t = 0; t < 64; t++) {
+                final int shift = t;
+                final Runnable task = () -> {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+
+                    for (int round = 0; round < 20; round++) {
+                        for (int i = 0; i < numbers.length; i++) {
+                            final int index = (i + shift * 61) % numbers.length;
+                            if (!expected[index].equals(Utils.optimizeReadability(numbers[index])))
+                                mismatches.incrementAndGet();
+                        }
+                    }
+                };
+
+                tasks.add(t % 2 == 0 ? platform.submit(task) : virtual.submit(task));
+            }
+
+            start.countDown();
+            for (var task : tasks)
+                task.get();
+        }
+
+        assertEquals(0, mismatches.get());
+    }
+}
@@ -0,0 +1,56 @@
+package org.example.lib;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Locale;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class VocabularyTest {
+    private String bundleName;
+
+    @BeforeEach
+    void useTestBundle() {
+        bundleName = Vocabulary.bundleName;
+        Vocabulary.bundleName = "vocabulary_test";
+    }
+
+    @AfterEach
+    void restoreBundle() {
+        Vocabulary.bundleName = bundleName;
+    }
+
+    @Test
+    void vocabulariesAreShared() {
+        final var vocabulary = Vocabulary.make(Locale.GERMAN);
+        assertSame(vocabulary, Vocabulary.make(Locale.GERMAN));
+        assertSame(vocabulary.getTemplate("greeting"), Vocabulary.make(Locale.GERMAN).getTemplate("greeting"));
+        assertNotSame(vocabulary, Vocabulary.make(Locale.US));
+        assertEquals("Hallo, Bob!", vocabulary.getTemplate("greeting").format("Bob"));
+    }
+
+    @Test
+    void missingKeysAreReportedOnLoad() {
+        assertEquals(Set.of(), Vocabulary.make(Locale.US).getMissingKeys());
+        assertEquals(Set.of("farewell"), Vocabulary.make(Locale.GERMAN).getMissingKeys());
+    }
+
+    @Test
+    void missingKeyIsReturnedAsIs() {
+        final var vocabulary = Vocabulary.make(Locale.GERMAN);
+        assertFalse(vocabulary.contains("farewell"));
+        assertEquals("farewell", vocabulary.get("farewell"));
+        assertEquals("no.such.key", vocabulary.getTemplate("no.such.key").format());
+        assertEquals("Goodbye", Vocabulary.make(Locale.US).get("farewell"));
+    }
+
+    @Test
+    void stringsFallBackToBaseBundle() {
+        final var vocabulary = Vocabulary.make(Locale.GERMAN);
+        assertEquals("Unknown command", vocabulary.get("core.unknownCommand"));
+        assertEquals("Unknown command", Vocabulary.default_("core.unknownCommand"));
+    }
+}
@@ -0,0 +1,60 @@
+package com.example.lib.context;
+
+import com.example.lib.TgChat;
+import com.example.lib.Utils;
+import com.example.lib.menu.DenseCallbackCodec;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class InteractiveMessageContextTest {
+    private final InteractiveMessageContext context = new InteractiveMessageContext(new TgChat(1L, 100L, null));
+
+    @Test
+    void emptyPayload() {
+        assertFalse(context.getPayload().hasRemaining());
+        assertThrows(RuntimeException.class, () -> Utils.getIntFromPayload(context));
+    }
+
+    @Test
+    void payloadViewsHaveOwnPositions() {
+        context.setPayload(ByteBuffer.allocate(8).putInt(7).putInt(9).array());
+
+        final var first = context.getPayload();
+        assertTrue(first.isReadOnly());
+        assertEquals(7, first.getInt());
+        final var second = context.getPayload();
+        assertEquals(8, second.remaining());
+        assertEquals(7, second.getInt());
+        assertEquals(9, first.getInt());
+        assertEquals(7, (int) Utils.getIntFromPayload(context));
+        assertEquals(7, (int) Utils.getIntFromPayload(context));
+    }
+
+    @Test
+    void nextPayloadReplacesViewContent() {
+        context.setPayload(ByteBuffer.allocate(4).putInt(7).array());
+        final var view = context.getPayload();
+
+        // Views share the buffer of the context, only their limit is fixed
+        context.setPayload(ByteBuffer.allocate(4).putInt(5).array());
+        assertEquals(5, view.getInt());
+        assertEquals(5, (int) Utils.getIntFromPayload(context));
+    }
+
+    @Test
+    void decodedPayloadIsRead() {
+        final var codec = new DenseCallbackCodec();
+        final var text = "page".getBytes(StandardCharsets.UTF_8);
+        final var data = new StringBuilder("tag%");
+        codec.encode(text, 0, text.length, data);
+
+        context.decodePayload(codec, data, 4, data.length());
+        assertEquals(text.length, context.getPayload().remaining());
+        assertEquals("page", Utils.getStringFromPayload(context, text.length));
+        assertEquals("page", Utils.getStringFromPayload(context, text.length));
+    }
+}
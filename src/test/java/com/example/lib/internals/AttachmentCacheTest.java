@@ -0,0 +1,167 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AttachmentCacheTest {
+    @Test
+    void heapEvictsLeastRecentlyUsed() {
+        final var cache = new AttachmentCache(10);
+        cache.put("a", bytes(4, 1));
+        cache.put("b", bytes(4, 2));
+        assertNotNull(cache.get("a"));
+
+        cache.put("c", bytes(4, 3));
+        assertNull(cache.get("b"));
+        assertEquals(buffer(4, 1), cache.get("a"));
+        assertEquals(buffer(4, 3), cache.get("c"));
+        assertEquals(8, cache.getHeapSize());
+    }
+
+    @Test
+    void heapKeepsToByteBudget() {
+        final var cache = new AttachmentCache(10);
+        cache.put("big", bytes(11, 1));
+        assertNull(cache.get("big"));
+        assertEquals(0, cache.getHeapSize());
+
+        for (int i = 0; i < 5; i++)
+            cache.put("f" + i, bytes(3, i));
+
+        assertEquals(9, cache.getHeapSize());
+        assertNull(cache.get("f1"));
+        assertNotNull(cache.get("f2"));
+    }
+
+    @Test
+    void evictedFilesAreSpilledAndReadBack() throws IOException {
+        final var directory = Files.createTempDirectory("attachments");
+        try {
+            final var cache = new AttachmentCache(4, directory, 100);
+            cache.put("a", bytes(4, 1));
+            cache.put("b", bytes(4, 2));
+            cache.put("big", bytes(6, 3));
+
+            assertEquals(4, cache.getHeapSize());
+            assertEquals(10, cache.getDiskSize());
+            assertEquals(buffer(4, 1), cache.get("a"));
+            assertEquals(buffer(6, 3), cache.get("big"));
+            assertTrue(Files.exists(directory.resolve("a")));
+
+            // Spilled files are reused by the next instance
+            final var reopened = new AttachmentCache(4, directory, 100);
+            assertEquals(10, reopened.getDiskSize());
+            assertEquals(buffer(4, 1), reopened.get("a"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    void diskKeepsToByteBudget() throws IOException {
+        final var directory = Files.createTempDirectory("attachments");
+        try {
+            final var cache = new AttachmentCache(0, directory, 8);
+            cache.put("a", bytes(4, 1));
+            cache.put("b", bytes(4, 2));
+            cache.put("c", bytes(4, 3));
+
+            assertEquals(8, cache.getDiskSize());
+            assertNull(cache.get("a"));
+            assertFalse(Files.exists(directory.resolve("a")));
+            assertEquals(buffer(4, 3), cache.get("c"));
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    void indexedDirectoryIsTrimmedToDiskBudget() throws IOException {
+        final var directory = Files.createTempDirectory("attachments");
+        try {
+            for (int i = 0; i < 4; i++) {
+                final var file = directory.resolve("f" + i);
+                Files.write(file, new byte[4]);
+                Files.setLastModifiedTime(file, FileTime.fromMillis(1_000_000L * (i + 1)));
+            }
+            Files.write(directory.resolve("spill1.tmp"), new byte[4]);
+
+            final var cache = new AttachmentCache(0, directory, 8);
+            assertEquals(8, cache.getDiskSize());
+            assertNull(cache.get("f0"));
+            assertNull(cache.get("f1"));
+            assertNotNull(cache.get("f2"));
+            assertNotNull(cache.get("f3"));
+            try (var files = Files.list(directory)) {
+                assertEquals(2, files.count());
+            }
+        } finally {
+            deleteRecursively(directory);
+        }
+    }
+
+    @Test
+    void concurrentLoadsShareOneDownload() {
+        final var cache = new AttachmentCache(100);
+        final var downloads = new AtomicInteger();
+        final var download = new CompletableFuture<byte[]>();
+
+        final var first = cache.get("a", () -> {
+            downloads.incrementAndGet();
+            return download;
+        });
+        final var second = cache.get("a", () -> {
+            downloads.incrementAndGet();
+            return CompletableFuture.completedFuture(bytes(4, 9));
+        });
+
+        assertSame(first, second);
+        assertFalse(first.isDone());
+
+        download.complete(bytes(4, 1));
+        assertEquals(buffer(4, 1), first.join());
+        assertEquals(buffer(4, 1), cache.get("a", () -> {
+            downloads.incrementAndGet();
+            return download;
+        }).join());
+        assertEquals(1, downloads.get());
+    }
+
+    @Test
+    void failedLoadIsNotCached() {
+        final var cache = new AttachmentCache(100);
+        final var failed = cache.get("a", () -> CompletableFuture.failedFuture(new IOException("Connection reset")));
+        assertTrue(failed.isCompletedExceptionally());
+        assertNull(cache.get("a"));
+
+        assertEquals(buffer(4, 1), cache.get("a", () -> CompletableFuture.completedFuture(bytes(4, 1))).join());
+    }
+
+    private static byte[] bytes(int length, int value) {
+        final var data = new byte[length];
+        Arrays.fill(data, (byte) value);
+        return data;
+    }
+
+    private static ByteBuffer buffer(int length, int value) {
+        return ByteBuffer.wrap(bytes(length, value));
+    }
+
+    private static void deleteRecursively(Path directory) throws IOException {
+        try (var files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.deleteIfExists(file);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgChat;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatRegistryTest {
+    private final ChatRegistry registry = new ChatRegistry();
+
+    @Test
+    void watermarkOutlivesEvictedChat() throws Exception {
+        registry.setOnEvicted(TgChat::clearContexts);
+        registry.setIdleTimeout(Duration.ofMillis(1));
+
+        final var chat = registry.computeIfAbsent(1L, id -> new TgChat(id, id, null));
+        chat.restoreEvictedContextWatermark(10);
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertNull(registry.get(1L));
+
+        final var recreated = registry.computeIfAbsent(1L, id -> new TgChat(id, id, null));
+        assertNotSame(chat, recreated);
+        assertEquals(10, recreated.getEvictedContextWatermark());
+
+        // Watermark is handed over once
+        registry.setIdleTimeout(null);
+        final var other = registry.computeIfAbsent(2L, id -> new TgChat(id, id, null));
+        assertEquals(Integer.MIN_VALUE, other.getEvictedContextWatermark());
+    }
+
+    @Test
+    void watermarkIsKeptWithoutEvictionHook() throws Exception {
+        registry.setIdleTimeout(Duration.ofMillis(1));
+
+        final var chat = registry.computeIfAbsent(1L, id -> new TgChat(id, id, null));
+        chat.restoreEvictedContextWatermark(10);
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertNull(registry.get(1L));
+
+        assertEquals(10, registry.computeIfAbsent(1L, id -> new TgChat(id, id, null)).getEvictedContextWatermark());
+    }
+
+    @Test
+    void chatWithoutEvictedContextsLeavesNoWatermark() throws Exception {
+        registry.setIdleTimeout(Duration.ofMillis(1));
+        registry.computeIfAbsent(1L, id -> new TgChat(id, id, null));
+        Thread.sleep(5);
+        registry.evictIdle();
+
+        assertEquals(Integer.MIN_VALUE,
+                registry.computeIfAbsent(1L, id -> new TgChat(id, id, null)).getEvictedContextWatermark());
+    }
+
+    @Test
+    void busyChatsAreNotEvicted() throws Exception {
+        final var busy = new HashSet<Long>();
+        registry.setInUse(busy::contains);
+        registry.setIdleTimeout(Duration.ofMillis(1));
+        registry.computeIfAbsent(1L, id -> new TgChat(id, id, null));
+        registry.computeIfAbsent(2L, id -> new TgChat(id, id, null));
+        busy.add(1L);
+
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertNotNull(registry.get(1L));
+        assertNull(registry.get(2L));
+
+        busy.clear();
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertNull(registry.get(1L));
+    }
+
+    @Test
+    void overflowSkipsBusyChats() throws Exception {
+        registry.setInUse(id -> id == 1L);
+        registry.setCapacity(2);
+        for (long id = 1; id <= 3; id++) {
+            registry.computeIfAbsent(id, chatId -> new TgChat(chatId, chatId, null));
+            Thread.sleep(1);
+        }
+
+        // The oldest chat is busy, so the next one is evicted instead
+        assertNotNull(registry.get(1L));
+        assertNull(registry.get(2L));
+        assertNotNull(registry.get(3L));
+    }
+
+    @Test
+    void userKeepsAllChats() throws Exception {
+        registry.setIdleTimeout(Duration.ofMillis(1));
+        final var group = registry.computeIfAbsent(-10L, id -> new TgChat(7L, id, null));
+        assertSame(group, registry.getByUser(7L).orElseThrow());
+
+        final var privateChat = registry.computeIfAbsent(7L, id -> new TgChat(7L, id, null));
+        final var otherGroup = registry.computeIfAbsent(-20L, id -> new TgChat(7L, id, null));
+        assertSame(privateChat, registry.getByUser(7L).orElseThrow());
+
+        // Eviction of the private chat leaves other chats of the user reachable
+        registry.setInUse(id -> id != 7L);
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertNull(registry.get(7L));
+        assertSame(group, registry.getByUser(7L).orElseThrow());
+
+        registry.setInUse(id -> id == -20L);
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertSame(otherGroup, registry.getByUser(7L).orElseThrow());
+
+        registry.setInUse(id -> false);
+        Thread.sleep(5);
+        registry.evictIdle();
+        assertTrue(registry.getByUser(7L).isEmpty());
+    }
+}
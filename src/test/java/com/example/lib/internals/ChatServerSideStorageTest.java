@@ -0,0 +1,143 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatServerSideStorageTest {
+    @Test
+    void collidingKeysSurviveBackwardShiftDeletes() {
+        final var table = new ChatServerSideStorage.IntTable();
+        final var keys = keysWithHome(table.capacity(), 15, 6);
+        final var items = new HashMap<Integer, ChatServerSideStorage.Item>();
+        for (int key : keys) {
+            final var item = new ChatServerSideStorage.Item(key, 0);
+            items.put(key, item);
+            table.put(key, item);
+        }
+
+        // The cluster starts in the last slot and wraps around to the beginning of the table
+        table.remove(keys.get(1), items.get(keys.get(1)));
+        table.remove(keys.get(0), items.get(keys.get(0)));
+        for (int i = 2; i < keys.size(); i++)
+            assertSame(items.get(keys.get(i)), table.get(keys.get(i)));
+
+        assertNull(table.get(keys.get(0)));
+        assertNull(table.get(keys.get(1)));
+        assertEquals(keys.size() - 2, table.size());
+    }
+
+    @Test
+    void removeIgnoresReplacedItem() {
+        final var table = new ChatServerSideStorage.IntTable();
+        final var stale = new ChatServerSideStorage.Item(7, 0);
+        final var current = new ChatServerSideStorage.Item(7, 1);
+        table.put(7, stale);
+        table.put(7, current);
+
+        table.remove(7, stale);
+        assertSame(current, table.get(7));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void randomOperationsMatchHashMap() {
+        final var random = new Random(42);
+        final var table = new ChatServerSideStorage.IntTable();
+        final var expected = new HashMap<Integer, ChatServerSideStorage.Item>();
+        for (int i = 0; i < 200_000; i++) {
+            // Small key range, so clusters and deletes in the middle of them are frequent
+            final int key = random.nextInt(512) * 1024;
+            if (random.nextInt(3) == 0) {
+                final var item = expected.get(key);
+                if (item != null) {
+                    table.remove(key, item);
+                    expected.remove(key);
+                }
+            } else {
+                final var item = new ChatServerSideStorage.Item(key, i);
+                table.put(key, item);
+                expected.put(key, item);
+            }
+        }
+
+        assertEquals(expected.size(), table.size());
+        for (int key = 0; key < 512 * 1024; key += 1024)
+            assertSame(expected.get(key), table.get(key));
+    }
+
+    @Test
+    void tableShrinksAfterRemoves() {
+        final var table = new ChatServerSideStorage.IntTable();
+        final var items = new ArrayList<ChatServerSideStorage.Item>();
+        for (int i = 0; i < 10_000; i++) {
+            final var item = new ChatServerSideStorage.Item(i, 0);
+            items.add(item);
+            table.put(i, item);
+        }
+
+        final int grown = table.capacity();
+        assertTrue(grown >= 10_000 * 4 / 3);
+
+        for (int i = 0; i < 9_990; i++)
+            table.remove(i, items.get(i));
+
+        assertEquals(10, table.size());
+        assertTrue(table.capacity() <= 128, "Table isn't shrunk: " + table.capacity());
+        for (int i = 9_990; i < 10_000; i++)
+            assertSame(items.get(i), table.get(i));
+    }
+
+    @Test
+    void itemsExpireInCreationOrder() throws Exception {
+        final var storage = new ChatServerSideStorage(Duration.ofMillis(300));
+        storage.getCheckboxes(1).add("a");
+        Thread.sleep(200);
+        storage.getCheckboxes(2).add("b");
+        assertEquals(2, storage.size());
+
+        Thread.sleep(150);
+        storage.cleanUp();
+        assertEquals(1, storage.size());
+        assertTrue(storage.getCheckboxes(1).isEmpty());
+        assertEquals(List.of("b"), List.copyOf(storage.getCheckboxes(2)));
+
+        Thread.sleep(200);
+        storage.cleanUp();
+        assertEquals(1, storage.size());
+        assertTrue(storage.getCheckboxes(2).isEmpty());
+    }
+
+    @Test
+    void sharedSweeperCleansUpStorages() throws Exception {
+        final var first = new ChatServerSideStorage(Duration.ofMillis(10));
+        final var second = new ChatServerSideStorage(Duration.ofMillis(10));
+        for (int i = 0; i < 100; i++) {
+            first.getCheckboxes(i).add("x");
+            second.getCheckboxes(i).add("y");
+        }
+
+        final long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while ((first.size() > 0 || second.size() > 0) && System.nanoTime() < deadline)
+            Thread.sleep(50);
+
+        assertEquals(0, first.size());
+        assertEquals(0, second.size());
+    }
+
+    private static List<Integer> keysWithHome(int capacity, int home, int count) {
+        final var keys = new ArrayList<Integer>();
+        for (int key = 0; keys.size() < count; key++) {
+            if ((ChatServerSideStorage.IntTable.mix(key) & (capacity - 1)) == home)
+                keys.add(key);
+        }
+
+        return keys;
+    }
+}
@@ -0,0 +1,139 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ChatUpdateDispatcherTest {
+    @Test
+    void tasksOfSameKeyRunInOrder() throws Exception {
+        final var executor = Executors.newFixedThreadPool(4);
+        try {
+            final var dispatcher = new ChatUpdateDispatcher(executor, 64);
+            final var executed = Collections.synchronizedList(new ArrayList<Integer>());
+            final var running = new AtomicInteger();
+            final var overlapped = new AtomicBoolean();
+            for (int i = 0; i < 1000; i++) {
+                final int index = i;
+                dispatcher.dispatch(1L, () -> {
+                    if (running.incrementAndGet() > 1)
+                        overlapped.set(true);
+
+                    executed.add(index);
+                    running.decrementAndGet();
+                });
+            }
+
+            awaitIdle(dispatcher);
+            assertFalse(overlapped.get());
+            final var expected = new ArrayList<Integer>();
+            for (int i = 0; i < 1000; i++)
+                expected.add(i);
+
+            assertEquals(expected, List.copyOf(executed));
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void tasksOfDifferentKeysRunInParallel() throws Exception {
+        final var executor = Executors.newFixedThreadPool(2);
+        try {
+            final var dispatcher = new ChatUpdateDispatcher(executor, 4);
+            // Each task waits for the other one, so they complete only if they run at the same time
+            final var barrier = new CyclicBarrier(2);
+            final var met = new AtomicInteger();
+            final Runnable task = () -> {
+                try {
+                    barrier.await(5, TimeUnit.SECONDS);
+                    met.incrementAndGet();
+                } catch (Exception e) {
+                    throw new RuntimeException(e);
+                }
+            };
+
+            dispatcher.dispatch(1L, task);
+            dispatcher.dispatch(2L, task);
+            awaitIdle(dispatcher);
+            assertEquals(2, met.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void dispatchBlocksAtQueueDepth() throws Exception {
+        final var executor = Executors.newFixedThreadPool(2);
+        try {
+            final var dispatcher = new ChatUpdateDispatcher(executor, 2);
+            final var release = new CountDownLatch(1);
+            final Runnable blocked = () -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            };
+
+            dispatcher.dispatch(1L, blocked);
+            dispatcher.dispatch(2L, blocked);
+            assertEquals(2, dispatcher.pending());
+
+            final var dispatched = new CountDownLatch(1);
+            final var producer = new Thread(() -> {
+                try {
+                    dispatcher.dispatch(3L, () -> { });
+                    dispatched.countDown();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            producer.start();
+
+            assertFalse(dispatched.await(200, TimeUnit.MILLISECONDS), "Dispatch didn't block on a full queue");
+            release.countDown();
+            assertTrue(dispatched.await(5, TimeUnit.SECONDS));
+            producer.join();
+            awaitIdle(dispatcher);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    void failingTaskDoesNotStopLane() throws Exception {
+        final var executor = Executors.newSingleThreadExecutor();
+        try {
+            final var dispatcher = new ChatUpdateDispatcher(executor, 4);
+            final var executed = new AtomicBoolean();
+            dispatcher.dispatch(1L, () -> {
+                throw new IllegalStateException("Test failure");
+            });
+            dispatcher.dispatch(1L, () -> executed.set(true));
+
+            awaitIdle(dispatcher);
+            assertTrue(executed.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void awaitIdle(ChatUpdateDispatcher dispatcher) throws InterruptedException {
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dispatcher.pending() > 0 && System.nanoTime() < deadline)
+            Thread.sleep(5);
+
+        assertEquals(0, dispatcher.pending());
+    }
+}
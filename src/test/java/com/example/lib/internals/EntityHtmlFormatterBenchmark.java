@@ -0,0 +1,69 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.model.MessageEntity;
+import com.pengrad.telegrambot.model.MessageEntity.Type;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link EntityHtmlFormatter} with the formatter it replaced:
+ *  1. short - a usual command reply with a couple of entities
+ *  2. long - a few KB of text with nested, adjacent and link entities every couple of words
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=EntityHtmlFormatterBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityHtmlFormatterBenchmark {
+    @Param({"short", "long"})
+    public String message;
+
+    private String text;
+    private MessageEntity[] entities;
+
+    @Setup
+    public void setUp() {
+        if (message.equals("short")) {
+            text = "Balance: 1,250.00 <USD> & 3 pending 😀";
+            entities = new MessageEntity[]{
+                    new MessageEntity(Type.bold, 0, 8),
+                    new MessageEntity(Type.code, 9, 8)
+            };
+            return;
+        }
+
+        final var sb = new StringBuilder();
+        final var list = new ArrayList<MessageEntity>();
+        for (int i = 0; sb.length() < 4000; i++) {
+            final int start = sb.length();
+            sb.append("word").append(i).append(" <&> ");
+            switch (i % 4) {
+                case 0 -> {
+                    list.add(new MessageEntity(Type.bold, start, sb.length() - start));
+                    list.add(new MessageEntity(Type.italic, start, 4));
+                }
+                case 1 -> list.add(new MessageEntity(Type.text_link, start, 4).url("https://example.com/?q=" + i + "&x=y"));
+                case 2 -> list.add(new MessageEntity(Type.code, start, sb.length() - start));
+                default -> sb.append("😀 ");
+            }
+        }
+
+        text = sb.toString();
+        entities = list.toArray(MessageEntity[]::new);
+    }
+
+    @Benchmark
+    public String legacy() {
+        return LegacyEntityHtmlFormatter.format(text, entities);
+    }
+
+    @Benchmark
+    public String current() {
+        return EntityHtmlFormatter.format(text, entities);
+    }
+}
@@ -0,0 +1,123 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.model.MessageEntity;
+import com.pengrad.telegrambot.model.MessageEntity.Type;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EntityHtmlFormatterTest {
+    private static final String LINK = "https://example.com/?a=1&b=<2>";
+
+    @Test
+    void plainTextIsEscaped() {
+        assertSameOutput("a < b && c > d", null);
+        assertSameOutput("a < b && c > d");
+        assertEquals("a &lt; b &amp;&amp; c &gt; d", EntityHtmlFormatter.format("a < b && c > d", null));
+    }
+
+    @Test
+    void nestedEntities() {
+        assertSameOutput("bold and italic", entity(Type.bold, 0, 15), entity(Type.italic, 9, 6));
+        assertSameOutput("bold and italic", entity(Type.italic, 9, 6), entity(Type.bold, 0, 15));
+        assertEquals("<b>bold and <i>italic</i></b>", EntityHtmlFormatter.format("bold and italic",
+                new MessageEntity[]{entity(Type.bold, 0, 15), entity(Type.italic, 9, 6)}));
+    }
+
+    @Test
+    void entitiesStartingTogetherAreOpenedFromTheLongest() {
+        assertSameOutput("abcdef", entity(Type.bold, 0, 3), entity(Type.italic, 0, 6), entity(Type.code, 0, 1));
+    }
+
+    @Test
+    void overlappingEntities() {
+        assertSameOutput("overlapping", entity(Type.bold, 0, 6), entity(Type.italic, 3, 8));
+        assertSameOutput("overlapping", entity(Type.bold, 2, 6), entity(Type.underline, 0, 4),
+                entity(Type.strikethrough, 5, 6));
+    }
+
+    @Test
+    void adjacentEntities() {
+        assertSameOutput("onetwothree", entity(Type.bold, 0, 3), entity(Type.italic, 3, 3),
+                entity(Type.code, 6, 5));
+    }
+
+    @Test
+    void zeroLengthAndDuplicateEntities() {
+        assertSameOutput("abc", entity(Type.bold, 1, 0), entity(Type.italic, 0, 3));
+        assertSameOutput("abc", entity(Type.bold, 0, 2), entity(Type.bold, 0, 2), entity(Type.italic, 1, 2));
+    }
+
+    @Test
+    void entitiesOutOfText() {
+        assertSameOutput("abc", entity(Type.bold, 1, 10), entity(Type.italic, 5, 2));
+    }
+
+    @Test
+    void unsupportedEntitiesHaveNoTags() {
+        assertSameOutput("@user #tag", entity(Type.mention, 0, 5), entity(Type.hashtag, 6, 4),
+                entity(Type.bold, 0, 10));
+    }
+
+    @Test
+    void linksAreEscaped() {
+        assertSameOutput("click <here>", entity(Type.text_link, 6, 6).url(LINK));
+        assertSameOutput("no url", entity(Type.text_link, 0, 6));
+        assertEquals("<a href=\"https://example.com/?a=1&amp;b=&lt;2&gt;\">x</a>",
+                EntityHtmlFormatter.format("x", new MessageEntity[]{entity(Type.text_link, 0, 1).url(LINK)}));
+    }
+
+    @Test
+    void surrogatePairs() {
+        // Telegram offsets are in UTF-16 code units, an emoji takes two of them
+        final var text = "😀 smile 👍 & <ok>";
+        assertSameOutput(text, entity(Type.bold, 0, 2), entity(Type.italic, 3, 5), entity(Type.spoiler, 9, 2));
+        assertSameOutput(text, entity(Type.bold, 1, 3), entity(Type.code, 10, 8));
+    }
+
+    @Test
+    void randomCorpus() {
+        final var random = new Random(42);
+        final var types = Type.values();
+        final var alphabet = "ab<>&\"' xyzé😀";
+
+        for (int i = 0; i < 50_000; i++) {
+            final var text = new StringBuilder();
+            final int length = random.nextInt(30);
+            while (text.length() < length) {
+                final int at = random.nextInt(alphabet.length() - 1);
+                text.append(Character.isHighSurrogate(alphabet.charAt(at)) ?
+                        alphabet.substring(at, at + 2) : String.valueOf(alphabet.charAt(at)));
+            }
+
+            final var entities = new MessageEntity[random.nextInt(7)];
+            for (int e = 0; e < entities.length; e++) {
+                if (e > 0 && random.nextInt(6) == 0) {
+                    final var copied = entities[random.nextInt(e)];
+                    entities[e] = entity(copied.type(), copied.offset(), copied.length()).url(copied.url());
+                    continue;
+                }
+
+                entities[e] = entity(types[random.nextInt(types.length)],
+                        random.nextInt(text.length() + 3), random.nextInt(text.length() + 3));
+                if (random.nextBoolean())
+                    entities[e].url(random.nextBoolean() ? LINK : null);
+            }
+
+            assertSameOutput(text.toString(), entities);
+        }
+    }
+
+    private static void assertSameOutput(String text, MessageEntity... entities) {
+        assertEquals(LegacyEntityHtmlFormatter.format(text, entities), EntityHtmlFormatter.format(text, entities),
+                () -> text + " " + Arrays.toString(Arrays.stream(entities)
+                        .map(e -> e.type() + ":" + e.offset() + "+" + e.length()).toArray()));
+    }
+
+    private static MessageEntity entity(Type type, int offset, int length) {
+        return new MessageEntity(type, offset, length);
+    }
+}
@@ -0,0 +1,155 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgChat;
+import com.example.lib.context.InteractiveMessageContext;
+import com.example.lib.menu.MenuInfo;
+import com.example.lib.menu.MenuInfoSupplier;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileMessageContextStoreTest {
+    private final TgChat chat = new TgChat(1L, 100L, null);
+    private Path directory;
+    private FileMessageContextStore store;
+
+    @BeforeEach
+    void createStore() throws IOException {
+        directory = Files.createTempDirectory("contexts");
+        store = new FileMessageContextStore(directory);
+    }
+
+    @AfterEach
+    void deleteFiles() throws IOException {
+        store.close();
+        try (var files = Files.walk(directory)) {
+            for (var file : files.sorted(Comparator.reverseOrder()).toList())
+                Files.delete(file);
+        }
+    }
+
+    @Test
+    void jdkValuesAndStatelessSupplierAreRestored() {
+        final var context = new InteractiveMessageContext(chat);
+        context.put("text", "value");
+        context.put("number", 42);
+        context.put("list", new ArrayList<>(List.of(1L, 2L)));
+        context.put("date", LocalDate.of(2024, 1, 31));
+        context.put("bytes", new byte[]{1, 2, 3});
+        context.latestMenuSupplier = new StatelessMenu();
+        store.save(chat, 7, context);
+
+        final var reopened = new FileMessageContextStore(directory);
+        final var restored = reopened.load(chat, 7);
+        reopened.close();
+        assertNotNull(restored);
+        assertEquals("value", restored.get("text"));
+        assertEquals(42, restored.get("number"));
+        assertEquals(List.of(1L, 2L), restored.get("list"));
+        assertEquals(LocalDate.of(2024, 1, 31), restored.get("date"));
+        assertArrayEquals(new byte[]{1, 2, 3}, (byte[]) restored.get("bytes"));
+        assertTrue(restored.latestMenuSupplier instanceof StatelessMenu);
+    }
+
+    @Test
+    void statefulSupplierIsNotStored() {
+        final var context = new InteractiveMessageContext(chat);
+        context.put("text", "value");
+        context.latestMenuSupplier = new StatefulMenu(5);
+        store.save(chat, 7, context);
+
+        final var restored = store.load(chat, 7);
+        assertEquals("value", restored.get("text"));
+        assertNull(restored.latestMenuSupplier);
+    }
+
+    @Test
+    void classesOutOfAllowlistAreRejected() {
+        final var context = new InteractiveMessageContext(chat);
+        context.put("custom", new Custom("secret"));
+        store.save(chat, 7, context);
+
+        assertNull(store.load(chat, 7));
+
+        final var allowing = new FileMessageContextStore(directory, MessageContextCache.DEFAULT_TTL,
+                List.of("com.example.lib.internals.FileMessageContextStoreTest$Custom"));
+        assertEquals(new Custom("secret"), allowing.load(chat, 7).get("custom"));
+        allowing.close();
+    }
+
+    @Test
+    void latestRecordWinsAcrossCompactionsAndReopening() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            final var context = new InteractiveMessageContext(chat);
+            context.put("step", i);
+            store.save(chat, i % 3, context);
+        }
+
+        store.remove(chat, 1);
+        assertEquals(99, store.load(chat, 0).get("step"));
+        assertNull(store.load(chat, 1));
+        assertEquals(98, store.load(chat, 2).get("step"));
+
+        // Compaction keeps only live records
+        final long size = Files.size(directory.resolve("100.ctx"));
+        store.close();
+        final var reopened = new FileMessageContextStore(directory);
+        assertEquals(99, reopened.load(chat, 0).get("step"));
+        assertNull(reopened.load(chat, 1));
+        assertEquals(98, reopened.load(chat, 2).get("step"));
+        assertTrue(size < 40 * 200, "File isn't compacted: " + size);
+        reopened.close();
+
+        // Closed store opens files again
+        assertEquals(99, store.load(chat, 0).get("step"));
+    }
+
+    @Test
+    void lookupsDoNotCreateFiles() {
+        assertNull(store.load(chat, 1));
+        assertFalse(Files.exists(directory.resolve("100.ctx")));
+    }
+
+    @Test
+    void expiredContextsAreNotRestored() throws Exception {
+        final var shortLived = new FileMessageContextStore(directory, Duration.ofMillis(1));
+        shortLived.save(chat, 1, new InteractiveMessageContext(chat));
+        Thread.sleep(20);
+        assertNull(shortLived.load(chat, 1));
+        shortLived.close();
+    }
+
+    public static class StatelessMenu extends MenuInfoSupplier {
+        @Override
+        public CompletableFuture<MenuInfo> create(TgChat targetChat, InteractiveMessageContext context) {
+            return CompletableFuture.failedFuture(new UnsupportedOperationException());
+        }
+    }
+
+    public static class StatefulMenu extends StatelessMenu {
+        private final int page;
+
+        public StatefulMenu(int page) {
+            this.page = page;
+        }
+
+        public StatefulMenu() {
+            this(0);
+        }
+    }
+
+    record Custom(String value) implements Serializable { }
+}
@@ -0,0 +1,70 @@
+package com.example.lib.internals;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.text.DecimalFormat;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares {@link FixedPointFormat} with thread-safe ways to use DecimalFormat, which it replaced:
+ *  1. regular - amounts which are rounded with long arithmetic
+ *  2. tie - amounts which are exactly at a rounding tie and are formatted by the DecimalFormat fallback
+ * Run with {@code mvn -Pbenchmark test-compile exec:exec -Dbenchmark=FixedPointFormatBenchmark}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(4)
+public class FixedPointFormatBenchmark {
+    private static final String PATTERN = "#,###.00";
+
+    @Param({"regular", "tie"})
+    public String values;
+
+    private final DecimalFormat shared = new DecimalFormat(PATTERN);
+    private final FixedPointFormat fixedPoint = new FixedPointFormat(PATTERN);
+    private double[] numbers;
+
+    @Setup
+    public void setUp() {
+        numbers = new double[1024];
+        for (int i = 0; i < numbers.length; i++) {
+            numbers[i] = values.equals("tie") ?
+                    i * 12.5 + 0.125 :
+                    i * 1234.5678 + 0.0123;
+        }
+    }
+
+    @Benchmark
+    public int lockedDecimalFormat() {
+        int length = 0;
+        for (double number : numbers) {
+            synchronized (shared) {
+                length += shared.format(number).length();
+            }
+        }
+
+        return length;
+    }
+
+    @Benchmark
+    public int decimalFormatPerCall() {
+        int length = 0;
+        for (double number : numbers)
+            length += ((DecimalFormat) shared.clone()).format(number).length();
+
+        return length;
+    }
+
+    @Benchmark
+    public int fixedPointFormat() {
+        int length = 0;
+        for (double number : numbers)
+            length += fixedPoint.format(number).length();
+
+        return length;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.text.DecimalFormat;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FixedPointFormatTest {
+    private static final String[] PATTERNS = {"#,###", "#,###.00", "#.000", "#.0000000", "0.0", "000.00"};
+    private static final Locale[] LOCALES = {Locale.US, Locale.GERMANY, Locale.FRANCE,
+            Locale.forLanguageTag("de-CH"), Locale.forLanguageTag("ar-EG"), Locale.forLanguageTag("hi-IN-u-nu-deva")};
+
+    private final Locale defaultLocale = Locale.getDefault(Locale.Category.FORMAT);
+
+    @AfterEach
+    void restoreLocale() {
+        Locale.setDefault(Locale.Category.FORMAT, defaultLocale);
+    }
+
+    @Test
+    void unsupportedPatterns() {
+        assertThrows(IllegalArgumentException.class, () -> new FixedPointFormat("#.##"));
+        assertThrows(IllegalArgumentException.class, () -> new FixedPointFormat("#.0000000000"));
+        assertThrows(IllegalArgumentException.class, () -> new FixedPointFormat("#%"));
+    }
+
+    @Test
+    void specialValues() {
+        assertSameOutput(Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, -0.0,
+                Double.MIN_VALUE, -Double.MIN_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE);
+    }
+
+    @Test
+    void ties() {
+        assertSameOutput(0.5, 1.5, 2.5, -2.5, 0.125, 0.375, 2.675, 1.005, 5.0E-4, 0.0015, 1234.565, 1.00000005,
+                0.49999999999999994, 4503599627370495.5, 0.045, 0.055, 1.0E-7, 5.0E-8, 1.5E-7);
+
+        final var random = new Random(7);
+        final var numbers = new double[20_000];
+        for (int i = 0; i < numbers.length; i += 4) {
+            final int digits = random.nextInt(9);
+            final double tie = (random.nextInt(1_000_000) + 0.5) / Math.pow(10, digits);
+            numbers[i] = tie;
+            numbers[i + 1] = Math.nextUp(tie);
+            numbers[i + 2] = Math.nextDown(tie);
+            numbers[i + 3] = -tie;
+        }
+
+        assertSameOutput(numbers);
+    }
+
+    @Test
+    void decimalTies() {
+        // Decimal ties aren't exact in binary, so they're rounded by the side of the tie they're stored at
+        final var random = new Random(11);
+        final var numbers = new double[20_000];
+        for (int i = 0; i < numbers.length; i++) {
+            final var fraction = new StringBuilder();
+            for (int k = random.nextInt(8); k > 0; k--)
+                fraction.append(random.nextInt(10));
+
+            numbers[i] = Double.parseDouble(random.nextInt(100_000) + "." + fraction + "5");
+        }
+
+        assertSameOutput(numbers);
+    }
+
+    @Test
+    void hugeValues() {
+        assertSameOutput(0x1p53, 0x1p53 + 2, 0x1p63, 0x1p70, 1.0E17, 1.0E20, 1.0E23, 123456789.123456789,
+                9.007199254740993E15, -1.0E300);
+    }
+
+    @Test
+    void randomValues() {
+        final var random = new Random(42);
+        final var numbers = new double[50_000];
+        for (int i = 0; i < numbers.length; i += 2) {
+            numbers[i] = (random.nextDouble() - 0.5) * Math.pow(10, random.nextInt(24) - 10);
+            numbers[i + 1] = random.nextInt(100_000) / 1000.0;
+        }
+
+        assertSameOutput(numbers);
+    }
+
+    private static void assertSameOutput(double... numbers) {
+        for (var locale : LOCALES) {
+            Locale.setDefault(Locale.Category.FORMAT, locale);
+            for (var pattern : PATTERNS) {
+                final var expected = new DecimalFormat(pattern);
+                final var actual = new FixedPointFormat(pattern);
+                for (double number : numbers) {
+                    assertEquals(expected.format(number), actual.format(number),
+                            () -> locale + " " + pattern + " " + number);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.model.MessageEntity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TreeMap;
+
+/**
+ * Formatter which was used by the bot before {@link EntityHtmlFormatter}, kept as is to check that the new one
+ * produces the same output and to compare their speed.
+ */
+final class LegacyEntityHtmlFormatter {
+    private LegacyEntityHtmlFormatter() { }
+
+    static String format(String text, MessageEntity[] entities) {
+        if (text == null)
+            return "";
+
+        if (entities == null || entities.length == 0)
+            return escapeHtml(text);
+
+        final var events = new TreeMap<Integer, Boundary>();
+        for (MessageEntity e : entities) {
+            final int start = Math.min(e.offset(), text.length());
+            final int end = Math.min(e.offset() + e.length(), text.length());
+            events.computeIfAbsent(start, __ -> new Boundary()).starts.add(e);
+            events.computeIfAbsent(end, __ -> new Boundary()).ends.add(e);
+        }
+
+        final var sb = new StringBuilder();
+        final var stack = new ArrayList<MessageEntity>();
+        int cursor = 0;
+        for (var entry : events.entrySet()) {
+            final int pos = entry.getKey();
+            if (cursor < pos) {
+                sb.append(escapeHtml(text.substring(cursor, pos)));
+            }
+
+            // Close entities that end here (from inner to outer)
+            final var toClose = entry.getValue().ends;
+            if (!toClose.isEmpty()) {
+                final var closeSet = new HashSet<>(toClose);
+                for (int i = stack.size() - 1; i >= 0; i--) {
+                    if (closeSet.contains(stack.get(i))) {
+                        sb.append(closeTag(stack.remove(i)));
+                    }
+                }
+            }
+
+            // Open entities that start here (outer first -> longer first)
+            final var toOpen = entry.getValue().starts.stream()
+                    .sorted(Comparator.<MessageEntity>comparingInt(e -> e.length()).reversed())
+                    .toList();
+            for (MessageEntity e : toOpen) {
+                stack.add(e);
+                sb.append(openTag(e));
+            }
+
+            cursor = pos;
+        }
+
+        if (cursor < text.length()) {
+            sb.append(escapeHtml(text.substring(cursor)));
+        }
+
+        // Close any remaining entities
+        for (int i = stack.size() - 1; i >= 0; i--) {
+            sb.append(closeTag(stack.get(i)));
+        }
+
+        return sb.toString();
+    }
+
+    private static String openTag(MessageEntity e) {
+        return switch (e.type()) {
+            case bold -> "<b>";
+            case italic -> "<i>";
+            case underline -> "<u>";
+            case strikethrough -> "<s>";
+            case spoiler -> "<span class=\"tg-spoiler\">";
+            case code -> "<code>";
+            case pre -> "<pre>";
+            case text_link -> "<a href=\"" + escapeHtml(e.url()) + "\">";
+            default -> "";
+        };
+    }
+
+    private static String closeTag(MessageEntity e) {
+        return switch (e.type()) {
+            case bold -> "</b>";
+            case italic -> "</i>";
+            case underline -> "</u>";
+            case strikethrough -> "</s>";
+            case spoiler -> "</span>";
+            case code -> "</code>";
+            case pre -> "</pre>";
+            case text_link -> "</a>";
+            default -> "";
+        };
+    }
+
+    private static String escapeHtml(String s) {
+        if (s == null) return "";
+        return s.replace("&", "&amp;")
+                .replace("<", "&lt;")
+                .replace(">", "&gt;");
+    }
+
+    private static class Boundary {
+        List<MessageEntity> starts = new ArrayList<>();
+        List<MessageEntity> ends = new ArrayList<>();
+    }
+}
@@ -0,0 +1,143 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LimitedWrappedMapTest {
+    @Test
+    void oldestItemsAreEvicted() {
+        final var map = new LimitedWrappedMap<Integer>(3);
+        final var ids = new ArrayList<String>();
+        for (int i = 0; i < 5; i++)
+            ids.add(map.add(i));
+
+        assertNull(map.get(ids.get(0)));
+        assertNull(map.get(ids.get(1)));
+        for (int i = 2; i < 5; i++)
+            assertEquals(i, (int) map.get(ids.get(i)));
+    }
+
+    @Test
+    void removedItemIsGone() {
+        final var map = new LimitedWrappedMap<String>(4);
+        final var first = map.add("first");
+        final var second = map.add("second");
+
+        assertEquals("first", map.remove(first));
+        assertNull(map.get(first));
+        assertNull(map.remove(first));
+        assertEquals("second", map.get(second));
+
+        final var third = map.add("third");
+        assertEquals(Arrays.asList("second", null, "third"),
+                map.remove(List.of(second, first, third)));
+    }
+
+    @Test
+    void staleIdDoesNotMatchItemInTheSameSlot() {
+        final var map = new LimitedWrappedMap<String>(1);
+        final var old = map.add("old");
+        final var current = map.add("current");
+
+        assertNotEquals(old, current);
+        assertNull(map.get(old));
+        assertNull(map.remove(old));
+        assertEquals("current", map.get(current));
+    }
+
+    @Test
+    void forgedIdsAreRejected() {
+        final var map = new LimitedWrappedMap<String>(16);
+        final var id = map.add("item");
+        final var bytes = Base64.getUrlDecoder().decode(id);
+
+        // Another nonce with the right number
+        final var wrongNonce = bytes.clone();
+        wrongNonce[0] ^= 1;
+        // Another number with the right nonce
+        final var wrongNumber = bytes.clone();
+        wrongNumber[bytes.length - 1] ^= 1;
+
+        final var encoder = Base64.getUrlEncoder().withoutPadding();
+        for (var forged : new String[]{null, "", "!!!", "AAAA", id + "A", id.substring(1),
+                encoder.encodeToString(wrongNonce), encoder.encodeToString(wrongNumber),
+                encoder.encodeToString(new byte[]{1, 2, 3, 4, 5, 6, (byte) 0x80, 0, 0, 0, 0, 0, 0, 0})}) {
+            assertNull(map.get(forged), "Accepted " + forged);
+            assertNull(map.remove(forged), "Removed by " + forged);
+        }
+
+        assertEquals("item", map.get(id));
+    }
+
+    @Test
+    void concurrentAddsWrapAroundWithoutReusingIds() throws Exception {
+        final int threads = 8;
+        final int perThread = 20_000;
+        final int capacity = 1000;
+        final var map = new LimitedWrappedMap<Integer>(capacity);
+        final var ids = new String[threads * perThread];
+        final var allIds = ConcurrentHashMap.<String>newKeySet();
+        final var start = new CountDownLatch(1);
+        final var failures = new AtomicInteger();
+
+        final var workers = new ArrayList<Thread>();
+        for (int t = 0; t < threads; t++) {
+            final int base = t * perThread;
+            workers.add(Thread.ofPlatform().start(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < perThread; i++) {
+                        final var id = map.add(base + i);
+                        ids[base + i] = id;
+                        if (!allIds.add(id))
+                            failures.incrementAndGet();
+
+                        // Lookups race with adds of other threads
+                        final var found = map.get(id);
+                        if (found != null && found != base + i)
+                            failures.incrementAndGet();
+                    }
+                } catch (InterruptedException e) {
+                    failures.incrementAndGet();
+                }
+            }));
+        }
+
+        start.countDown();
+        for (var worker : workers)
+            worker.join();
+
+        assertEquals(0, failures.get());
+        assertEquals(threads * perThread, allIds.size());
+
+        int live = 0;
+        for (int i = 0; i < ids.length; i++) {
+            final var item = map.get(ids[i]);
+            if (item != null) {
+                assertEquals(i, (int) item);
+                live++;
+            }
+        }
+
+        assertTrue(live <= capacity, "Too many live items: " + live);
+        assertTrue(live > 0);
+    }
+
+    @Test
+    void idsAreShort() {
+        final var map = new LimitedWrappedMap<Integer>(1);
+        for (int i = 0; i < 70_000; i++) {
+            final var id = map.add(i);
+            assertEquals(i < 65536 ? 11 : 12, id.length());
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MediaGroupAggregatorTest {
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+    private final MediaGroupAggregator<String> aggregator = new MediaGroupAggregator<>(Duration.ofMillis(100), timer);
+
+    @AfterEach
+    void stopTimer() {
+        timer.shutdownNow();
+    }
+
+    @Test
+    void groupIsCompletedOnceWithAllItems() throws Exception {
+        final var album = aggregator.add("1:a", "first");
+        assertNotNull(album);
+        assertNull(aggregator.add("1:a", "second"));
+        assertNull(aggregator.add("1:a", "third"));
+        assertFalse(album.isDone());
+
+        assertEquals(List.of("first", "second", "third"), album.get(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    void itemsWithinWindowKeepGroupOpen() throws Exception {
+        final var album = aggregator.add("1:a", "first");
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(40);
+            assertNull(aggregator.add("1:a", "next"));
+            assertFalse(album.isDone());
+        }
+
+        assertEquals(6, album.get(5, TimeUnit.SECONDS).size());
+    }
+
+    @Test
+    void groupsAreSeparate() throws Exception {
+        final var first = aggregator.add("1:a", "a");
+        final var second = aggregator.add("2:a", "b");
+        assertNotSame(first, second);
+
+        assertEquals(List.of("a"), first.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("b"), second.get(5, TimeUnit.SECONDS));
+
+        // The same media group id after a flush starts a new group
+        assertNotNull(aggregator.add("1:a", "c"));
+    }
+}
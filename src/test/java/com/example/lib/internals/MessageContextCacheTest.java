@@ -0,0 +1,86 @@
+package com.example.lib.internals;
+
+import com.example.lib.TgBot;
+import com.example.lib.TgChat;
+import com.example.lib.context.InteractiveMessageContext;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MessageContextCacheTest {
+    private final TgChat chat = new TgChat(1L, 1L, null);
+
+    @Test
+    void leastRecentlyUsedContextIsEvicted() {
+        final var cache = new MessageContextCache(new MessageContextCache.Limits(2, Duration.ofHours(1), 100));
+        final var first = new InteractiveMessageContext(chat);
+        cache.put(1, first);
+        cache.put(2, new InteractiveMessageContext(chat));
+        assertSame(first, cache.get(1));
+
+        cache.put(3, new InteractiveMessageContext(chat));
+        assertSame(first, cache.get(1));
+        assertNull(cache.get(2));
+        assertTrue(cache.wasEvicted(2));
+        assertFalse(cache.wasEvicted(4));
+    }
+
+    @Test
+    void usedContextExpiresAfterTtl() throws Exception {
+        final var cache = new MessageContextCache(new MessageContextCache.Limits(10, Duration.ofMillis(100), 100));
+        cache.put(1, new InteractiveMessageContext(chat));
+        for (int i = 0; i < 3; i++) {
+            Thread.sleep(20);
+            assertNotNull(cache.get(1));
+        }
+
+        // Replacing the context doesn't restart its TTL
+        cache.put(1, new InteractiveMessageContext(chat));
+        Thread.sleep(80);
+        assertNull(cache.get(1));
+        assertTrue(cache.wasEvicted(1));
+    }
+
+    @Test
+    void expiredContextsOfIdleChatsReleaseBudget() throws Exception {
+        final var bot = new TgBot("token");
+        bot.setMessageContextLimits(10, Duration.ofMillis(50), 4);
+        final var registry = new ChatRegistry();
+        final var idle = registry.computeIfAbsent(1L, id -> new TgChat(id, id, bot));
+        for (int i = 1; i <= 4; i++)
+            idle.getContextFor(i);
+
+        Thread.sleep(80);
+        registry.evictExpiredContexts();
+        assertEquals(0, bot.getMessageContextLimits().getUsed());
+        assertEquals(4, idle.getEvictedContextWatermark());
+
+        // The budget is free again, so an active chat keeps all its contexts
+        final var active = registry.computeIfAbsent(2L, id -> new TgChat(id, id, bot));
+        final var contexts = new ArrayList<InteractiveMessageContext>();
+        for (int i = 1; i <= 4; i++)
+            contexts.add(active.getContextFor(i));
+
+        for (int i = 1; i <= 4; i++)
+            assertSame(contexts.get(i - 1), active.getLiveContextFor(i));
+    }
+
+    @Test
+    void budgetOverflowDropsExpiredContextsFirst() throws Exception {
+        final var limits = new MessageContextCache.Limits(10, Duration.ofMillis(50), 3);
+        final var cache = new MessageContextCache(limits);
+        cache.put(1, new InteractiveMessageContext(chat));
+        cache.put(2, new InteractiveMessageContext(chat));
+        Thread.sleep(80);
+        cache.put(3, new InteractiveMessageContext(chat));
+        cache.put(4, new InteractiveMessageContext(chat));
+
+        assertEquals(2, cache.size());
+        assertNotNull(cache.get(3));
+        assertNotNull(cache.get(4));
+        assertEquals(2, cache.getEvictedWatermark());
+    }
+}
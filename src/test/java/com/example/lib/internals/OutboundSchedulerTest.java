@@ -0,0 +1,73 @@
+package com.example.lib.internals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OutboundSchedulerTest {
+    private final OutboundScheduler scheduler = new OutboundScheduler();
+
+    @AfterEach
+    void shutdown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    void privateChatGetsBurst() throws Exception {
+        final long start = System.nanoTime();
+        final var sent = new ArrayList<CompletableFuture<Long>>();
+        for (int i = 0; i < 4; i++)
+            sent.add(scheduler.submit(42L, () -> CompletableFuture.completedFuture(System.nanoTime() - start)));
+
+        for (int i = 0; i < 3; i++)
+            assertTrue(sent.get(i).get(5, TimeUnit.SECONDS) < TimeUnit.MILLISECONDS.toNanos(300));
+
+        assertTrue(sent.get(3).get(5, TimeUnit.SECONDS) >= TimeUnit.MILLISECONDS.toNanos(900));
+    }
+
+    @Test
+    void consecutiveEditsAreCoalesced() throws Exception {
+        final var sent = new CopyOnWriteArrayList<String>();
+        final var gate = new CompletableFuture<String>();
+        scheduler.submit(42L, () -> gate);
+
+        final var first = scheduler.submit(42L, "edit", () -> send(sent, "edit 1"));
+        final var second = scheduler.submit(42L, "edit", () -> send(sent, "edit 2"));
+        gate.complete("first");
+
+        assertEquals("edit 2", first.get(5, TimeUnit.SECONDS));
+        assertEquals("edit 2", second.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("edit 2"), sent);
+    }
+
+    @Test
+    void coalescingKeepsOrderOfChatRequests() throws Exception {
+        final var sent = new CopyOnWriteArrayList<String>();
+        final var gate = new CompletableFuture<String>();
+        scheduler.submit(42L, () -> gate);
+
+        final var first = scheduler.submit(42L, "edit", () -> send(sent, "edit 1"));
+        final var message = scheduler.submit(42L, () -> send(sent, "message"));
+        final var second = scheduler.submit(42L, "edit", () -> send(sent, "edit 2"));
+        final var third = scheduler.submit(42L, "edit", () -> send(sent, "edit 3"));
+        gate.complete("first");
+
+        assertEquals("edit 1", first.get(5, TimeUnit.SECONDS));
+        assertEquals("message", message.get(5, TimeUnit.SECONDS));
+        assertEquals("edit 3", second.get(5, TimeUnit.SECONDS));
+        assertEquals("edit 3", third.get(5, TimeUnit.SECONDS));
+        assertEquals(List.of("edit 1", "message", "edit 3"), sent);
+    }
+
+    private static CompletableFuture<String> send(List<String> sent, String request) {
+        sent.add(request);
+        return CompletableFuture.completedFuture(request);
+    }
+}
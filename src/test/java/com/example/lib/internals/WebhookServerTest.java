@@ -0,0 +1,83 @@
+package com.example.lib.internals;
+
+import com.pengrad.telegrambot.model.Update;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Predicate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class WebhookServerTest {
+    private static final String SECRET = "secret";
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private final List<Update> received = new CopyOnWriteArrayList<>();
+    private volatile Predicate<Update> sink = received::add;
+    private WebhookServer server;
+
+    @BeforeEach
+    void startServer() throws IOException {
+        server = new WebhookServer(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), "/telegram", SECRET,
+                update -> sink.test(update));
+        server.start();
+    }
+
+    @AfterEach
+    void stopServer() {
+        server.stop();
+    }
+
+    @Test
+    void updateReachesSink() throws Exception {
+        assertEquals(200, post(SECRET, "{\"update_id\": 42}"));
+        assertEquals(1, received.size());
+        assertEquals(42, (int) received.get(0).updateId());
+    }
+
+    @Test
+    void wrongSecretIsRejected() throws Exception {
+        assertEquals(401, post("wrong", "{\"update_id\": 1}"));
+        assertEquals(401, post(null, "{\"update_id\": 1}"));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void malformedJsonIsRejected() throws Exception {
+        assertEquals(400, post(SECRET, "{\"update_id\": "));
+        assertTrue(received.isEmpty());
+    }
+
+    @Test
+    void failingUpdateIsAcknowledged() throws Exception {
+        sink = update -> {
+            throw new IllegalStateException("Unable to dispatch");
+        };
+        assertEquals(200, post(SECRET, "{\"update_id\": 1}"));
+
+        // Only an update which couldn't be accepted for now is delivered again
+        sink = update -> false;
+        assertEquals(503, post(SECRET, "{\"update_id\": 2}"));
+    }
+
+    private int post(String secret, String body) throws Exception {
+        final var address = server.getAddress();
+        final var request = HttpRequest.newBuilder(
+                        URI.create("http://" + address.getHostString() + ":" + address.getPort() + "/telegram"))
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (secret != null)
+            request.header(WebhookServer.SECRET_TOKEN_HEADER, secret);
+
+        return client.send(request.build(), HttpResponse.BodyHandlers.discarding()).statusCode();
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.lib.menu;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CallbackCodecTest {
+    private static final String EXCLUDED = "%\"'\\`<>&;";
+
+    private final DenseCallbackCodec dense = new DenseCallbackCodec();
+    private final Base64CallbackCodec base64 = new Base64CallbackCodec();
+
+    @Test
+    void emptyPayload() {
+        assertEquals("", encode(dense, new byte[0]));
+        assertRoundTrip(dense, new byte[0]);
+        assertRoundTrip(base64, new byte[0]);
+    }
+
+    @Test
+    void boundaryBytesAndLengths() {
+        final var random = new Random(42);
+        for (int length = 0; length <= CallbackReference.TG_CALLBACK_DATA_SIZE_LIMIT; length++) {
+            final var zeros = new byte[length];
+            final var ones = new byte[length];
+            Arrays.fill(ones, (byte) 0xFF);
+            final var mixed = new byte[length];
+            random.nextBytes(mixed);
+
+            for (var payload : new byte[][]{zeros, ones, mixed}) {
+                assertRoundTrip(dense, payload);
+                assertRoundTrip(base64, payload);
+            }
+        }
+    }
+
+    @Test
+    void denseDataIsPrintableAscii() {
+        final var random = new Random(7);
+        for (int i = 0; i < 10_000; i++) {
+            final var payload = new byte[random.nextInt(49)];
+            random.nextBytes(payload);
+
+            final var data = encode(dense, payload);
+            assertEquals(payload.length == 0 ? 0 : 1 + payload.length / 4 * 5 + (payload.length % 4 == 0 ? 0 : payload.length % 4 + 1),
+                    data.length());
+            for (char ch : data.toCharArray()) {
+                assertTrue(ch > ' ' && ch < 0x7F, "Not printable: " + (int) ch);
+                assertTrue(EXCLUDED.indexOf(ch) < 0, "Excluded character: " + ch);
+            }
+        }
+    }
+
+    @Test
+    void denseReadsBase64Data() {
+        final var random = new Random(11);
+        for (int length = 1; length <= 40; length++) {
+            final var payload = new byte[length];
+            random.nextBytes(payload);
+
+            final var legacyData = "tag%" + Base64.getEncoder().encodeToString(payload);
+            final var target = new byte[CallbackReference.TG_CALLBACK_DATA_SIZE_LIMIT];
+            final int decoded = dense.decode(legacyData, 4, legacyData.length(), target);
+            assertArrayEquals(payload, Arrays.copyOf(target, decoded));
+        }
+    }
+
+    @Test
+    void malformedData() {
+        final var target = new byte[CallbackReference.TG_CALLBACK_DATA_SIZE_LIMIT];
+        assertThrows(IllegalArgumentException.class, () -> dense.decode("!ab;de", 0, 6, target));
+        assertThrows(IllegalArgumentException.class, () -> dense.decode("!\u0001bcde", 0, 6, target));
+        assertThrows(IllegalArgumentException.class, () -> dense.decode("!abcde0", 0, 7, target));
+        assertThrows(IllegalArgumentException.class, () -> dense.decode("!_____", 0, 6, target));
+        assertThrows(IllegalArgumentException.class, () -> dense.decode("!abcdeabcde", 0, 11, new byte[7]));
+    }
+
+    @Test
+    void callbackDataLimit() {
+        final var codec = CallbackReference.getCodec();
+        try {
+            CallbackReference.setCodec(dense);
+            final var fits = new CallbackReference("t").withPayload("a".repeat(48));
+            assertEquals(63, fits.toTelegramCallbackData().getBytes(StandardCharsets.UTF_8).length);
+            assertThrows(RuntimeException.class,
+                    () -> new CallbackReference("t").withPayload("a".repeat(49)).toTelegramCallbackData());
+
+            final var data = fits.toTelegramCallbackData();
+            final var target = new byte[CallbackReference.TG_CALLBACK_DATA_SIZE_LIMIT];
+            final int decoded = dense.decode(data, 2, data.length(), target);
+            assertEquals("a".repeat(48), new String(target, 0, decoded, StandardCharsets.UTF_8));
+        } finally {
+            CallbackReference.setCodec(codec);
+        }
+    }
+
+    private static void assertRoundTrip(CallbackCodec codec, byte[] payload) {
+        final var data = "tag%" + encode(codec, payload) + "tail";
+        final var target = new byte[CallbackReference.TG_CALLBACK_DATA_SIZE_LIMIT];
+        final int decoded = codec.decode(data, 4, data.length() - 4, target);
+        assertArrayEquals(payload, Arrays.copyOf(target, decoded));
+    }
+
+    private static String encode(CallbackCodec codec, byte[] payload) {
+        final var sb = new StringBuilder();
+        final var padded = new byte[payload.length + 6];
+        System.arraycopy(payload, 0, padded, 3, payload.length);
+        codec.encode(padded, 3, payload.length, sb);
+        return sb.toString();
+    }
+}
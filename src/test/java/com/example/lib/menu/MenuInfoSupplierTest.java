@@ -0,0 +1,66 @@
+package com.example.lib.menu;
+
+import com.example.lib.TgChat;
+import com.example.lib.context.InteractiveMessageContext;
+import com.example.lib.menu.button.MenuButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MenuInfoSupplierTest {
+    private final TgChat chat = new TgChat(1L, 100L, null);
+    private final InteractiveMessageContext context = new InteractiveMessageContext(chat);
+    private final List<InteractiveMessageContext> buttonContexts = new ArrayList<>();
+
+    @Test
+    void buttonsReceiveMessageContext() {
+        new Menu().render(chat, context).join();
+        assertEquals(List.of(context), buttonContexts);
+    }
+
+    @Test
+    void buttonsOfNewMessageReceiveNoContext() {
+        new Menu().render(chat, context, null).join();
+        assertEquals(Arrays.asList((InteractiveMessageContext) null), buttonContexts);
+    }
+
+    @Test
+    void cachedMenuIsRenderedWithoutButtonContext() {
+        final var menu = new CachedMenu();
+        final var first = menu.render(chat, context, context).join();
+        final var second = menu.render(chat, new InteractiveMessageContext(chat), null).join();
+
+        assertSame(first, second);
+        assertEquals(Arrays.asList((InteractiveMessageContext) null), buttonContexts);
+    }
+
+    private MenuInfo menuInfo() {
+        return MenuInfo.of("text", List.of(List.of(new MenuButton("button") {
+            @Override
+            public InlineKeyboardButton getInlineKeyboardButton(InteractiveMessageContext context) {
+                buttonContexts.add(context);
+                return super.getInlineKeyboardButton(context);
+            }
+        })));
+    }
+
+    private class Menu extends MenuInfoSupplier {
+        @Override
+        public CompletableFuture<MenuInfo> create(TgChat targetChat, InteractiveMessageContext context) {
+            return CompletableFuture.completedFuture(menuInfo());
+        }
+    }
+
+    private class CachedMenu extends CachedMenuInfoSupplier {
+        @Override
+        public CompletableFuture<MenuInfo> create(TgChat targetChat, InteractiveMessageContext context) {
+            return CompletableFuture.completedFuture(menuInfo());
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package com.example.lib.menu;
+
+import com.pengrad.telegrambot.model.request.InlineKeyboardButton;
+import com.pengrad.telegrambot.model.request.InlineKeyboardMarkup;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RenderedMenuTest {
+    @Test
+    void textsWithSameHashAreDifferent() {
+        final var shown = new RenderedMenu("Aa", null);
+        final var next = new RenderedMenu("BB", null);
+
+        assertEquals(shown.getTextHash(), next.getTextHash());
+        assertFalse(next.hasSameText(shown));
+    }
+
+    @Test
+    void equalMenusAreSame() {
+        final var shown = new RenderedMenu("Menu", keyboard("a", "1"));
+        final var next = new RenderedMenu("Menu", keyboard("a", "1"));
+
+        assertTrue(next.hasSameText(shown));
+        assertTrue(next.hasSameMarkup(shown));
+    }
+
+    @Test
+    void changedButtonChangesMarkup() {
+        final var shown = new RenderedMenu("Menu", keyboard("a", "1"));
+        final var next = new RenderedMenu("Menu", keyboard("a", "2"));
+
+        assertTrue(next.hasSameText(shown));
+        assertFalse(next.hasSameMarkup(shown));
+    }
+
+    @Test
+    void unknownMenuIsNotSame() {
+        final var menu = new RenderedMenu("Menu", null);
+
+        assertFalse(menu.hasSameText(null));
+        assertFalse(menu.hasSameMarkup(null));
+    }
+
+    private static InlineKeyboardMarkup keyboard(String title, String data) {
+        return new InlineKeyboardMarkup().addRow(new InlineKeyboardButton(title).callbackData(data));
+    }
+}